@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    private static final PrintStream console = System.out;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Sends everything programs print to the console nowhere, so printing
+     * doesn't dominate the measurements.
+     */
+    static void discardConsole() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    static void restoreConsole() {
+        System.setOut(console);
+    }
+
+    /**
+     * Loads a program from the corpus.
+     *
+     * @param name The name of the program, without extension
+     * @return The source of the program
+     * @throws IOException If the program can't be read
+     */
+    static String loadCorpus(String name) throws IOException {
+        try (InputStream input = BenchmarkSupport.class.getResourceAsStream("/corpus/" + name + ".wut")) {
+            if (input == null) {
+                throw new IOException("Unknown corpus program " + name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Creates code that writes a string into the heap, leaving the cursor on its first character.
+     *
+     * @param value The string
+     * @return The code
+     */
+    static String writeString(String value) {
+        StringBuilder program = new StringBuilder();
+        for (char character : value.toCharArray()) {
+            for (int i = 0; i < character; i ++) {
+                program.append('+');
+            }
+            program.append('>');
+        }
+        for (int i = 0; i < value.length(); i ++) {
+            program.append('<');
+        }
+        return program.toString();
+    }
+
+    static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i ++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    static WutlangParser run(String source, Engine engine, int optimizationLevel) throws ParsingException {
+        WutlangParser parser = new WutlangParser(source);
+        parser.setEngine(engine);
+        parser.setOptimizationLevel(optimizationLevel);
+        parser.parseProgram();
+        return parser;
+    }
+}
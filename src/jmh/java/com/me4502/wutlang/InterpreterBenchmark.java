@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small programs that each stress one part of the interpreter.
+ *
+ * <p>Every invocation loads and compiles the program as well, which is
+ * small next to running it.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterpreterBenchmark {
+
+    /**
+     * Counts down from 65534 in steps of two, 64 times over. The step of
+     * two keeps the optimizer from replacing the inner loop.
+     */
+    private static final String ARITHMETIC = "++++++++[>++++++++[>--[-->+>+++<<]<-]<-]";
+
+    /**
+     * Like {@code >++>++>++[[-]<]}, over 1000 cells.
+     */
+    private static final String NESTED_LOOPS = BenchmarkSupport.repeat(">" + BenchmarkSupport.repeat("+", 200), 1000) + "[[-]<]";
+
+    /**
+     * Sets 65536 cells one after the other, growing the heap as it goes.
+     */
+    private static final String HEAP_GROWTH = BenchmarkSupport.repeat(">+", 1 << 16);
+
+    /**
+     * Pushes and pops three values a million times.
+     */
+    private static final String STACK_CHURN = "++++++++++++++++[>-[^^^VVV-]<-]";
+
+    @Param({"INTERPRETER", "JIT"})
+    public Engine engine;
+
+    @Param({"0", "2"})
+    public int optimizationLevel;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.discardConsole();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.restoreConsole();
+    }
+
+    @Benchmark
+    public WutlangParser arithmetic() throws ParsingException {
+        return BenchmarkSupport.run(ARITHMETIC, engine, optimizationLevel);
+    }
+
+    @Benchmark
+    public WutlangParser nestedLoops() throws ParsingException {
+        return BenchmarkSupport.run(NESTED_LOOPS, engine, optimizationLevel);
+    }
+
+    @Benchmark
+    public WutlangParser heapGrowth() throws ParsingException {
+        return BenchmarkSupport.run(HEAP_GROWTH, engine, optimizationLevel);
+    }
+
+    @Benchmark
+    public WutlangParser stackChurn() throws ParsingException {
+        return BenchmarkSupport.run(STACK_CHURN, engine, optimizationLevel);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File and network I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IoBenchmark {
+
+    /**
+     * Writes 262142 bytes to a file, then reads them back.
+     */
+    @State(Scope.Benchmark)
+    public static class FileState {
+
+        @Param({"false", "true"})
+        public boolean mapped;
+
+        private File file;
+        private String source;
+
+        @Setup
+        public void setup() throws IOException {
+            file = File.createTempFile("wutlang", ".txt");
+            source = BenchmarkSupport.writeString(file.getAbsolutePath()) + "&po>"
+                    + BenchmarkSupport.repeat("+", 'a') + "<++++++++[>>--[--<.>]<<-]i>>>+[,]e";
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    /**
+     * A webserver answering "aaa" to every request.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        private static final String START = "++++++++[>++++++<-]>>>+++<<$";
+        private static final String HANDLER = "!>>++++++++++[<++++++++++>-]<---...[-]<%";
+
+        @Param({"0", "4"})
+        public int serverThreads;
+
+        private WutlangParser parser;
+        private Thread thread;
+        private URL url;
+
+        @Setup
+        public void setup() throws Exception {
+            BenchmarkSupport.discardConsole();
+            // Measured the way the command line runs servers.
+            Machine.enableNoDelay();
+            // A concurrent server runs the handler once per request, a single one needs a loop.
+            parser = new WutlangParser(serverThreads > 0 ? START + HANDLER : START + "[" + HANDLER + "]");
+            parser.setServerMode(serverThreads, 0);
+            thread = new Thread(() -> {
+                try {
+                    parser.parseProgram();
+                } catch (ParsingException e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            InetSocketAddress address;
+            while ((address = parser.getServerAddress()) == null) {
+                Thread.sleep(10);
+            }
+            url = new URL("http://localhost:" + address.getPort() + "/");
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            parser.stopServer();
+            thread.join();
+            BenchmarkSupport.restoreConsole();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public WutlangParser fileWriteAndRead(FileState state) throws ParsingException {
+        WutlangParser parser = new WutlangParser(state.source);
+        parser.setMappedFiles(state.mapped);
+        parser.parseProgram();
+        return parser;
+    }
+
+    @Benchmark
+    public int httpRoundTrip(ServerState state) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) state.url.openConnection();
+        int total = 0;
+        try (InputStream body = connection.getInputStream()) {
+            byte[] buffer = new byte[64];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many short runs of one program, either compiling it every time or
+ * reusing a compiled program and a machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class MachineBenchmark {
+
+    /**
+     * Writes "Hello World!" and a newline.
+     */
+    private static final String HELLO = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.";
+
+    @Param({"INTERPRETER", "JIT"})
+    public Engine engine;
+
+    private Program program;
+    private Machine machine;
+
+    @Setup
+    public void setup() throws ParsingException {
+        BenchmarkSupport.discardConsole();
+        program = Program.compile(Arrays.asList(HELLO), WutlangOptimizer.DEFAULT_LEVEL);
+        machine = new Machine();
+        machine.setEngine(engine);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.restoreConsole();
+    }
+
+    @Benchmark
+    public WutlangParser compileAndRun() throws ParsingException {
+        return BenchmarkSupport.run(HELLO, engine, WutlangOptimizer.DEFAULT_LEVEL);
+    }
+
+    @Benchmark
+    public Machine reuseMachine() throws ParsingException {
+        machine.reset();
+        machine.run(program);
+        return machine;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and compiling programs, without running them. Loading a file
+ * or string also optimizes the program at the default level.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"mandelbrot", "hanoi", "primes"})
+    public String program;
+
+    private String source;
+    private List<String> lines;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        source = BenchmarkSupport.loadCorpus(program);
+        lines = Arrays.asList(source.split("\n"));
+        file = File.createTempFile("wutlang", ".wut");
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Program loadFile() throws IOException, ParsingException {
+        return new WutlangParser(file).getProgram();
+    }
+
+    @Benchmark
+    public Program loadString() throws ParsingException {
+        return new WutlangParser(source).getProgram();
+    }
+
+    @Benchmark
+    public Program compile() throws ParsingException {
+        return WutlangCompiler.compile(lines);
+    }
+
+    @Benchmark
+    public Program compileReader() throws IOException, ParsingException {
+        return WutlangCompiler.compile(new StringReader(source));
+    }
+
+    @Benchmark
+    public Program compileAndOptimize() throws ParsingException {
+        return WutlangOptimizer.optimize(WutlangCompiler.compile(lines), WutlangOptimizer.MAX_LEVEL);
+    }
+
+    @Benchmark
+    public JitProgram compileJit() throws ParsingException {
+        return JitCompiler.compile(WutlangOptimizer.optimize(WutlangCompiler.compile(lines), WutlangOptimizer.MAX_LEVEL));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Runs every program in the corpus on every engine, and fails when a run is
+ * slower than the stored baseline by more than a tolerance.
+ *
+ * <p>Usage: {@code PerformanceGate <baseline file> [tolerance %] [--update]}.
+ * With {@code --update}, the baseline is replaced by the times measured.</p>
+ *
+ * <p>Times are stored relative to a fixed workload that uses no code from
+ * this project, which is timed in the same JVM, so a baseline recorded on
+ * one machine still holds on another. Each program is measured in a few
+ * new JVMs, and the fastest is kept. They only use the optimizing
+ * compiler, as with tiered compilation the interpreter loop often ends up
+ * compiled differently from one start to the next.</p>
+ */
+public final class PerformanceGate {
+
+    private static final String[] CORPUS = {"mandelbrot", "hanoi", "primes"};
+    private static final double DEFAULT_TOLERANCE = 20;
+    private static final int FORKS = 3;
+    private static final int MIN_RUNS = 3;
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+    private static final int CALIBRATION_LIMIT = 1 << 21;
+    private static final int CALIBRATION_PRIMES = 155611;
+
+    private PerformanceGate() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ParsingException {
+        if (args.length == 3 && args[0].equals("--measure")) {
+            BenchmarkSupport.discardConsole();
+            Program program = compile(args[1]);
+            Engine engine = Engine.valueOf(args[2]);
+            double calibration = measure(PerformanceGate::calibrate);
+            double millis = measure(() -> newMachine(engine).run(program));
+            BenchmarkSupport.restoreConsole();
+            System.out.println(millis + " " + calibration);
+            return;
+        }
+        if (args.length < 1) {
+            System.err.println("Usage: PerformanceGate <baseline file> [tolerance %] [--update]");
+            System.exit(2);
+        }
+        Path baselineFile = Paths.get(args[0]);
+        double tolerance = DEFAULT_TOLERANCE;
+        boolean update = false;
+        for (int i = 1; i < args.length; i ++) {
+            if (args[i].equals("--update")) {
+                update = true;
+            } else {
+                tolerance = Double.parseDouble(args[i]);
+            }
+        }
+
+        Properties baseline = new Properties();
+        if (Files.exists(baselineFile)) {
+            try (InputStream input = Files.newInputStream(baselineFile)) {
+                baseline.load(input);
+            }
+        } else if (!update) {
+            System.err.println("No baseline at " + baselineFile + ", record one with --update.");
+            System.exit(1);
+        }
+
+        Properties results = new Properties();
+        List<String> regressions = new ArrayList<>();
+        for (String program : CORPUS) {
+            for (Engine engine : Engine.values()) {
+                String key = program + "." + engine.name().toLowerCase(Locale.ROOT);
+                double millis = Double.MAX_VALUE;
+                double relative = Double.MAX_VALUE;
+                for (int i = 0; i < FORKS; i ++) {
+                    double[] measured = fork(program, engine);
+                    millis = Math.min(millis, measured[0]);
+                    relative = Math.min(relative, measured[0] / measured[1]);
+                }
+                results.setProperty(key, String.format(Locale.ROOT, "%.4f", relative));
+                String line = String.format(Locale.ROOT, "%-24s %10.3f ms/run %10.1f runs/s %9.4f x calibration",
+                        key, millis, 1000 / millis, relative);
+                String expected = baseline.getProperty(key);
+                if (expected != null) {
+                    double change = (relative / Double.parseDouble(expected) - 1) * 100;
+                    line += String.format(Locale.ROOT, " %+7.1f%%", change);
+                    if (change > tolerance) {
+                        line += " SLOWER";
+                        regressions.add(key);
+                    }
+                }
+                System.out.println(line);
+            }
+        }
+
+        if (update) {
+            try (OutputStream output = Files.newOutputStream(baselineFile)) {
+                results.store(output, "Time per run of each corpus program, as a multiple of the calibration workload in PerformanceGate");
+            }
+            System.out.println("Updated the baseline at " + baselineFile + ".");
+        } else if (!regressions.isEmpty()) {
+            System.err.println(regressions.size() + " run(s) more than " + tolerance + "% slower than the baseline: " + regressions);
+            System.exit(1);
+        }
+    }
+
+    private static Program compile(String name) throws IOException, ParsingException {
+        return Program.compile(new StringReader(BenchmarkSupport.loadCorpus(name)), WutlangOptimizer.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Measures a program in a new JVM.
+     *
+     * @return The fastest run and the fastest calibration run, in milliseconds
+     */
+    private static double[] fork(String program, Engine engine) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-XX:-TieredCompilation", "-cp", System.getProperty("java.class.path"),
+                PerformanceGate.class.getName(), "--measure", program, engine.name())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String result;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            result = reader.readLine();
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IOException("Failed to measure " + program + " on " + engine + ".");
+        }
+        String[] times = result.split(" ");
+        return new double[] {Double.parseDouble(times[0]), Double.parseDouble(times[1])};
+    }
+
+    private interface Workload {
+
+        void run() throws ParsingException;
+    }
+
+    /**
+     * Times a workload once the JVM has warmed up. Short workloads run many
+     * times, so that the compiled code is ready before it is measured.
+     *
+     * @return The fastest run in milliseconds, which is the least affected by noise
+     */
+    private static double measure(Workload workload) throws ParsingException {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        for (int i = 0; i < MIN_RUNS || System.nanoTime() < warmupEnd; i ++) {
+            workload.run();
+        }
+        long best = Long.MAX_VALUE;
+        long measureEnd = System.nanoTime() + MEASURE_NANOS;
+        for (int i = 0; i < MIN_RUNS || System.nanoTime() < measureEnd; i ++) {
+            long start = System.nanoTime();
+            workload.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+
+    private static Machine newMachine(Engine engine) {
+        Machine machine = new Machine();
+        machine.setEngine(engine);
+        return machine;
+    }
+
+    /**
+     * The calibration workload, a sieve of Eratosthenes.
+     */
+    private static void calibrate() {
+        boolean[] composite = new boolean[CALIBRATION_LIMIT];
+        int primes = 0;
+        for (int i = 2; i < CALIBRATION_LIMIT; i ++) {
+            if (!composite[i]) {
+                primes ++;
+                for (long multiple = (long) i * i; multiple < CALIBRATION_LIMIT; multiple += i) {
+                    composite[(int) multiple] = true;
+                }
+            }
+        }
+        if (primes != CALIBRATION_PRIMES) {
+            throw new IllegalStateException("Calibration found " + primes + " primes.");
+        }
+    }
+}
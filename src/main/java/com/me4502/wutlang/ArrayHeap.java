@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.util.Arrays;
+
+/**
+ * A heap of 16-bit cells in a single array, which is copied whenever it grows.
+ *
+ * <p>This is the default heap, and the only one supported by the JIT.</p>
+ */
+public final class ArrayHeap implements Heap {
+
+    private final int initialSize;
+    private final long maxBytes;
+    private char[] cells;
+
+    public ArrayHeap() {
+        this(1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a heap.
+     *
+     * @param initialSize The initial length
+     * @param maxBytes The size limit, in bytes
+     */
+    public ArrayHeap(int initialSize, long maxBytes) {
+        if (initialSize < 1 || (long) initialSize * 2 > maxBytes) {
+            throw new IllegalArgumentException("Initial size must be at least 1 and within the size limit.");
+        }
+        this.initialSize = initialSize;
+        this.maxBytes = maxBytes;
+        this.cells = new char[initialSize];
+    }
+
+    /**
+     * Gets the backing array, which is replaced whenever the heap grows.
+     *
+     * @return The array
+     */
+    char[] array() {
+        return cells;
+    }
+
+    @Override
+    public int getCellWidth() {
+        return 16;
+    }
+
+    @Override
+    public int length() {
+        return cells.length;
+    }
+
+    @Override
+    public int get(int index) {
+        return index < cells.length ? cells[index] : 0;
+    }
+
+    @Override
+    public void set(int index, int value) {
+        cells[index] = (char) value;
+    }
+
+    @Override
+    public void add(int index, int delta) {
+        cells[index] += delta;
+    }
+
+    @Override
+    public boolean ensureCapacity(int index) {
+        if (index < cells.length) {
+            return true;
+        }
+        long maxCells = Math.min(maxBytes / 2, Integer.MAX_VALUE - 8);
+        if (index >= maxCells) {
+            return false;
+        }
+        long length = cells.length;
+        while (length <= index) {
+            length <<= 1;
+        }
+        cells = Arrays.copyOf(cells, (int) Math.min(length, maxCells));
+        return true;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void clear() {
+        if (cells.length == initialSize) {
+            Arrays.fill(cells, (char) 0);
+        } else {
+            cells = new char[initialSize];
+        }
+    }
+
+    @Override
+    public Heap copy() {
+        ArrayHeap copy = new ArrayHeap(initialSize, maxBytes);
+        copy.cells = cells.clone();
+        return copy;
+    }
+
+    @Override
+    public char[] toCharArray() {
+        return cells.clone();
+    }
+
+    @Override
+    public int[] toIntArray() {
+        int[] copy = new int[cells.length];
+        for (int i = 0; i < cells.length; i ++) {
+            copy[i] = cells[i];
+        }
+        return copy;
+    }
+}
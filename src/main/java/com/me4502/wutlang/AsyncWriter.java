@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes output to a stream on a background thread.
+ *
+ * <p>Bytes pass through a ring buffer with a single producer, the thread
+ * running the program, and a single consumer, the writer thread. Neither
+ * side takes a lock, and a side only parks when the buffer is full or
+ * empty. Once a write fails, the failure is thrown to the producer by
+ * every later call, and anything written after it is dropped.</p>
+ */
+final class AsyncWriter {
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final byte[] ring;
+    private final int mask;
+    private final Thread thread;
+
+    /** The number of bytes ever written, only changed by the producer. */
+    private volatile long head;
+    /** The number of bytes ever handed to the stream, only changed by the writer. */
+    private volatile long tail;
+    /** The position the producer wants flushed. */
+    private volatile long flushRequested;
+    /** The position up to which the stream has been flushed. */
+    private volatile long flushed;
+
+    private volatile Thread producer;
+    private volatile boolean producerWaiting;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    private volatile OutputStream target;
+
+    /**
+     * Creates a writer and starts its thread. Only one thread at a time may
+     * write to it.
+     *
+     * @param capacity The size of the ring buffer, rounded up to a power of two
+     */
+    AsyncWriter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this::drain, "wutlang-output-" + threadCounter.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Sets the stream that bytes are written to. Must only be called once
+     * everything written so far has been flushed.
+     *
+     * @param target The stream
+     */
+    void setTarget(OutputStream target) {
+        this.target = target;
+    }
+
+    /**
+     * Queues bytes to be written, waiting while the buffer is full.
+     *
+     * @param bytes The bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     * @throws IOException If an earlier write failed
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        checkFailure();
+        long head = this.head;
+        while (length > 0) {
+            long free = ring.length - (head - tail);
+            if (free == 0) {
+                awaitProducer(() -> ring.length - (this.head - tail) > 0);
+                checkFailure();
+                continue;
+            }
+            int index = (int) (head & mask);
+            int chunk = (int) Math.min(Math.min(free, length), ring.length - index);
+            System.arraycopy(bytes, offset, ring, index, chunk);
+            offset += chunk;
+            length -= chunk;
+            head += chunk;
+            this.head = head;
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Waits until everything written so far has been written to the
+     * stream, and the stream has been flushed.
+     *
+     * @throws IOException If writing or flushing failed
+     */
+    void flush() throws IOException {
+        long position = head;
+        if (flushed < position) {
+            flushRequested = position;
+            wakeWriter();
+            awaitProducer(() -> flushed >= position || failure != null);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes and flushes everything, then stops the writer thread.
+     *
+     * @throws IOException If writing or flushing failed
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Throws the failure of an earlier write, if any.
+     *
+     * @throws IOException If an earlier write failed
+     */
+    void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void wakeWriter() {
+        if (writerWaiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void wakeProducer() {
+        if (producerWaiting) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    private void awaitProducer(Condition condition) {
+        producer = Thread.currentThread();
+        while (!condition.isMet()) {
+            // Announced before checking again, so the writer can't miss that it needs to wake the producer.
+            producerWaiting = true;
+            if (!condition.isMet()) {
+                LockSupport.park(this);
+            }
+            producerWaiting = false;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            long tail = this.tail;
+            long head = this.head;
+            if (tail != head) {
+                int index = (int) (tail & mask);
+                int chunk = (int) Math.min(head - tail, ring.length - index);
+                if (failure == null) {
+                    try {
+                        target.write(ring, index, chunk);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                this.tail = tail + chunk;
+                wakeProducer();
+            } else if (flushed < flushRequested) {
+                // The producer may have written more since the head was read, so
+                // only what has reached the stream counts as flushed. Anything
+                // after it is written and flushed on the next pass.
+                long position = Math.min(flushRequested, tail);
+                if (failure == null) {
+                    try {
+                        target.flush();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                flushed = position;
+                wakeProducer();
+            } else if (closed) {
+                return;
+            } else {
+                writerWaiting = true;
+                if (this.head == tail && flushed >= flushRequested && !closed) {
+                    LockSupport.park(this);
+                }
+                writerWaiting = false;
+            }
+        }
+    }
+
+    private interface Condition {
+
+        boolean isMet();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles and runs many programs in parallel, checking their output.
+ *
+ * <p>A program {@code name.wut} reads its input from {@code name.in}, and
+ * its output is compared to {@code name.out}. Both files are optional, a
+ * program without an input file reads nothing, and one without an output
+ * file passes as long as it doesn't fail.</p>
+ */
+public final class BatchRunner {
+
+    public static final String INPUT_EXTENSION = ".in";
+    public static final String OUTPUT_EXTENSION = ".out";
+
+    private final int threads;
+    private final int optimizationLevel;
+    private final Scheduler.Limits limits;
+    private Path outputDirectory;
+
+    /**
+     * Creates a batch runner.
+     *
+     * @param threads The number of programs that run at once
+     * @param optimizationLevel The optimization level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     * @param limits The limits every program must stay within
+     */
+    public BatchRunner(int threads, int optimizationLevel, Scheduler.Limits limits) {
+        this.threads = threads;
+        this.optimizationLevel = optimizationLevel;
+        this.limits = limits;
+    }
+
+    /**
+     * Sets the directory the output of every program is written to, as
+     * {@code name.out}. Programs keep their path relative to the directory
+     * that holds all of them, so programs with the same name don't
+     * overwrite each other.
+     *
+     * @param outputDirectory The directory, or null to keep output in memory only
+     */
+    public void setOutputDirectory(Path outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Finds the programs matching the given patterns. A pattern is either
+     * a program, a directory that is searched for {@code .wut} files, or a
+     * glob such as {@code tests/**.wut}.
+     *
+     * @param patterns The patterns
+     * @return The programs, sorted and without duplicates
+     * @throws IOException If a directory can't be searched
+     */
+    public static List<Path> findPrograms(List<String> patterns) throws IOException {
+        TreeSet<Path> programs = new TreeSet<>();
+        for (String pattern : patterns) {
+            int wildcard = indexOfWildcard(pattern);
+            if (wildcard < 0) {
+                Path path = Paths.get(pattern);
+                if (Files.isDirectory(path)) {
+                    programs.addAll(walk(path, "glob:**.wut"));
+                } else {
+                    programs.add(path);
+                }
+            } else {
+                int separator = Math.max(pattern.lastIndexOf('/', wildcard), pattern.lastIndexOf('\\', wildcard));
+                Path root = separator < 0 ? Paths.get("") : Paths.get(pattern.substring(0, separator + 1));
+                programs.addAll(walk(root, "glob:" + pattern));
+            }
+        }
+        return new ArrayList<>(programs);
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i ++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<Path> walk(Path root, String glob) throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(glob);
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(path -> Files.isRegularFile(path) && matcher.matches(path)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Compiles and runs the given programs, and waits for all of them.
+     *
+     * @param programs The programs
+     * @return The result of every program, in the same order
+     * @throws IllegalArgumentException If the output of a program would overwrite its expected output
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public List<Result> run(List<Path> programs) throws InterruptedException {
+        List<Job> jobs = programs.stream().map(Job::new).collect(Collectors.toList());
+        if (outputDirectory != null) {
+            Path base = commonDirectory(programs);
+            Path directory = outputDirectory.toAbsolutePath().normalize();
+            for (Job job : jobs) {
+                Path expected = job.sibling(OUTPUT_EXTENSION).toAbsolutePath().normalize();
+                job.outputFile = directory.resolve(base == null ? expected.getFileName() : base.relativize(expected));
+                if (job.outputFile.equals(expected)) {
+                    throw new IllegalArgumentException("Output of " + job.program + " would overwrite its expected output.");
+                }
+            }
+        }
+        try (Scheduler scheduler = new Scheduler(threads, Scheduler.DEFAULT_QUANTUM)) {
+            // Compiling is spread over the common pool, and every program starts as soon as it is compiled.
+            jobs.parallelStream().forEach(job -> job.start(scheduler));
+            List<Result> results = new ArrayList<>();
+            for (Job job : jobs) {
+                results.add(job.finish());
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Finds the deepest directory that contains every program.
+     *
+     * @return The directory, or null if the programs have no directory in common
+     */
+    private static Path commonDirectory(List<Path> programs) {
+        Path common = null;
+        for (Path program : programs) {
+            Path directory = program.toAbsolutePath().normalize().getParent();
+            if (common == null) {
+                common = directory;
+            }
+            while (common != null && !directory.startsWith(common)) {
+                common = common.getParent();
+            }
+            if (common == null) {
+                return null;
+            }
+        }
+        return common;
+    }
+
+    private final class Job {
+
+        private final Path program;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private Path outputFile;
+        private long compileNanos;
+        private Scheduler.Session session;
+        private Result result;
+
+        Job(Path program) {
+            this.program = program;
+        }
+
+        private Path sibling(String extension) {
+            String name = program.getFileName().toString();
+            if (name.endsWith(".wut")) {
+                name = name.substring(0, name.length() - ".wut".length());
+            }
+            return program.resolveSibling(name + extension);
+        }
+
+        void start(Scheduler scheduler) {
+            long start = System.nanoTime();
+            Program compiled;
+            InputStream input;
+            try (FileChannel channel = FileChannel.open(program, StandardOpenOption.READ)) {
+                compiled = Program.compile(channel, optimizationLevel);
+                Path inputFile = sibling(INPUT_EXTENSION);
+                input = new ByteArrayInputStream(Files.isRegularFile(inputFile) ? Files.readAllBytes(inputFile) : new byte[0]);
+            } catch (IOException e) {
+                result = new Result(program, Status.ERROR, "Failed to read program: " + e.getMessage(), 0, 0, 0);
+                return;
+            } catch (ParsingException e) {
+                result = new Result(program, Status.ERROR, "Failed to parse program: " + e.getMessage(), System.nanoTime() - start, 0, 0);
+                return;
+            } finally {
+                compileNanos = System.nanoTime() - start;
+            }
+            session = scheduler.submit(compiled, limits, input, output);
+        }
+
+        Result finish() throws InterruptedException {
+            if (result != null) {
+                return result;
+            }
+            while (!session.await(1000)) {
+                // Limits are enforced by the scheduler.
+            }
+            byte[] actual = output.toByteArray();
+            String message = null;
+            Status status;
+            try {
+                if (session.getState() != Scheduler.State.FINISHED) {
+                    status = Status.ERROR;
+                    ParsingException failure = session.getFailure();
+                    message = failure == null ? "Program was " + session.getState().name().toLowerCase(Locale.ROOT) + "." : failure.getMessage();
+                } else {
+                    Path expectedFile = sibling(OUTPUT_EXTENSION);
+                    if (!Files.isRegularFile(expectedFile)) {
+                        status = Status.PASSED;
+                    } else if (Arrays.equals(Files.readAllBytes(expectedFile), actual)) {
+                        status = Status.PASSED;
+                    } else {
+                        status = Status.FAILED;
+                        message = "Output differs from " + expectedFile.getFileName() + ".";
+                    }
+                }
+                // Written after the comparison, so the expected output is read as it was.
+                if (outputFile != null) {
+                    Files.createDirectories(outputFile.getParent());
+                    Files.write(outputFile, actual);
+                }
+            } catch (IOException e) {
+                status = Status.ERROR;
+                message = "Failed to check output: " + e.getMessage();
+            }
+            return new Result(program, status, message, compileNanos, session.getRunNanos(), session.getIterations());
+        }
+    }
+
+    public enum Status {
+        PASSED,
+        FAILED,
+        ERROR
+    }
+
+    /**
+     * The outcome of a single program.
+     */
+    public static final class Result {
+
+        private final Path program;
+        private final Status status;
+        private final String message;
+        private final long compileNanos;
+        private final long runNanos;
+        private final long iterations;
+
+        Result(Path program, Status status, String message, long compileNanos, long runNanos, long iterations) {
+            this.program = program;
+            this.status = status;
+            this.message = message;
+            this.compileNanos = compileNanos;
+            this.runNanos = runNanos;
+            this.iterations = iterations;
+        }
+
+        public Path getProgram() {
+            return program;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Gets why the program didn't pass.
+         *
+         * @return The message, or null if the program passed
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public long getCompileNanos() {
+            return compileNanos;
+        }
+
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+    }
+
+    /**
+     * Writes a report with a line per program, followed by a summary.
+     *
+     * @param results The results
+     * @param wallNanos The time the whole batch took
+     * @param out The stream to write to
+     */
+    public static void writeText(List<Result> results, long wallNanos, PrintStream out) {
+        int width = 0;
+        for (Result result : results) {
+            width = Math.max(width, result.program.toString().length());
+        }
+        for (Result result : results) {
+            out.println(String.format(Locale.ROOT, "%-6s  %-" + width + "s  %9.2f ms  %12d iterations%s",
+                    result.status, result.program, (result.compileNanos + result.runNanos) / 1e6, result.iterations,
+                    result.message == null ? "" : "  " + result.message));
+        }
+        out.println(String.format(Locale.ROOT, "%d programs, %d passed, %d failed, %d errors in %.2f ms",
+                results.size(), count(results, Status.PASSED), count(results, Status.FAILED), count(results, Status.ERROR),
+                wallNanos / 1e6));
+    }
+
+    /**
+     * Writes the report as JSON.
+     *
+     * @param results The results
+     * @param wallNanos The time the whole batch took
+     * @param out The writer to write to
+     * @throws IOException If writing fails
+     */
+    public static void writeJson(List<Result> results, long wallNanos, Writer out) throws IOException {
+        out.write("{\n  \"programs\": [");
+        for (int i = 0; i < results.size(); i ++) {
+            Result result = results.get(i);
+            out.write(i == 0 ? "\n" : ",\n");
+            out.write("    {\"program\": " + quote(result.program.toString())
+                    + ", \"status\": " + quote(result.status.name().toLowerCase(Locale.ROOT))
+                    + ", \"message\": " + (result.message == null ? "null" : quote(result.message))
+                    + ", \"compileNanos\": " + result.compileNanos
+                    + ", \"runNanos\": " + result.runNanos
+                    + ", \"iterations\": " + result.iterations + "}");
+        }
+        out.write("\n  ],\n");
+        out.write("  \"passed\": " + count(results, Status.PASSED) + ",\n");
+        out.write("  \"failed\": " + count(results, Status.FAILED) + ",\n");
+        out.write("  \"errors\": " + count(results, Status.ERROR) + ",\n");
+        out.write("  \"wallNanos\": " + wallNanos + "\n}\n");
+        out.flush();
+    }
+
+    private static long count(List<Result> results, Status status) {
+        return results.stream().filter(result -> result.status == status).count();
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i ++) {
+            char character = value.charAt(i);
+            if (character == '"' || character == '\\') {
+                quoted.append('\\').append(character);
+            } else if (character < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) character));
+            } else {
+                quoted.append(character);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
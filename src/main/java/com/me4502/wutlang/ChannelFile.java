@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file opened by a program, providing the streams used by 'i' and 'o'.
+ *
+ * <p>Both streams share a single channel. Output is appended to the end
+ * of the file, and input is read from the start of the file, a buffer at
+ * a time. Input can instead be memory-mapped, which avoids copying large
+ * files through the buffer.</p>
+ *
+ * <p>A file can also be opened again read-only, for a request handler
+ * that reads it on another thread.</p>
+ */
+final class ChannelFile {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean mapped;
+    private final boolean readOnly;
+
+    private final OutputStream output = new ChannelOutput();
+    private final InputStream input = new ChannelInput();
+
+    private ByteBuffer readBuffer;
+    private long readPosition;
+
+    ChannelFile(Path path, boolean mapped) throws IOException {
+        this(path, mapped, false);
+    }
+
+    private ChannelFile(Path path, boolean mapped, boolean readOnly) throws IOException {
+        this.path = path;
+        this.channel = readOnly ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.mapped = mapped;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Opens this file again with its own channel, which can only be read.
+     *
+     * @param position The position the copy starts reading from, in bytes
+     * @return The copy
+     * @throws IOException If the file can't be opened
+     */
+    ChannelFile openReadOnly(long position) throws IOException {
+        ChannelFile copy = new ChannelFile(path, mapped, true);
+        copy.readPosition = position;
+        return copy;
+    }
+
+    OutputStream getOutput() {
+        return output;
+    }
+
+    InputStream getInput() {
+        return input;
+    }
+
+    /**
+     * Removes the contents of the file, and starts reading from the beginning again.
+     *
+     * @throws IOException If the file can't be truncated
+     */
+    void clear() throws IOException {
+        checkWritable();
+        // A mapping past the new end of the file must never be read again.
+        readBuffer = null;
+        readPosition = 0;
+        channel.truncate(0);
+    }
+
+    /**
+     * Gets the position of the next byte read from the file.
+     *
+     * @return The position in bytes
+     */
+    long getInputPosition() {
+        return readBuffer == null ? readPosition : readPosition - readBuffer.remaining();
+    }
+
+    /**
+     * Continues reading the file from a position.
+     *
+     * @param position The position in bytes
+     */
+    void seekInput(long position) {
+        readBuffer = null;
+        readPosition = position;
+    }
+
+    void close() throws IOException {
+        readBuffer = null;
+        channel.close();
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("File was opened read-only.");
+        }
+    }
+
+    /**
+     * Makes sure there are bytes left to read.
+     *
+     * @return False at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if (readBuffer != null && readBuffer.hasRemaining()) {
+            return true;
+        }
+        if (mapped) {
+            long size = channel.size();
+            if (size <= readPosition) {
+                return false;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, readPosition, Math.min(size - readPosition, Integer.MAX_VALUE));
+            readPosition += map.remaining();
+            readBuffer = map;
+            return true;
+        }
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        readBuffer.clear();
+        int read;
+        do {
+            read = channel.read(readBuffer, readPosition);
+        } while (read == 0);
+        readBuffer.flip();
+        if (read < 0) {
+            return false;
+        }
+        readPosition += read;
+        return true;
+    }
+
+    private final class ChannelInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? readBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            len = Math.min(len, readBuffer.remaining());
+            readBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelFile.this.close();
+        }
+    }
+
+    private final class ChannelOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkWritable();
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, channel.size());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelFile.this.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable stack of chars, backed by an array.
+ *
+ * <p>Unlike {@link java.util.Stack} this neither synchronizes nor boxes,
+ * as programs are executed by a single thread.</p>
+ */
+public final class CharStack {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final int UNLIMITED = Integer.MAX_VALUE - 8;
+
+    private final int maxDepth;
+    private char[] elements;
+    private int size;
+
+    private final List<Character> view = new AbstractList<Character>() {
+        @Override
+        public Character get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+    public CharStack() {
+        this(DEFAULT_CAPACITY, UNLIMITED);
+    }
+
+    /**
+     * Creates a stack.
+     *
+     * @param initialCapacity The number of elements to allocate up front
+     * @param maxDepth The maximum number of elements
+     */
+    public CharStack(int initialCapacity, int maxDepth) {
+        if (maxDepth < 0 || maxDepth > UNLIMITED) {
+            throw new IllegalArgumentException("Maximum depth must be between 0 and " + UNLIMITED + ".");
+        }
+        this.maxDepth = maxDepth;
+        this.elements = new char[Math.max(1, Math.min(initialCapacity, maxDepth))];
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Pushes a value onto the stack.
+     *
+     * @param value The value
+     * @return False if the stack is already at its maximum depth
+     */
+    public boolean push(char value) {
+        if (size >= maxDepth) {
+            return false;
+        }
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, (int) Math.min((long) size << 1, maxDepth));
+        }
+        elements[size ++] = value;
+        return true;
+    }
+
+    /**
+     * Removes the top value of the stack. The stack must not be empty.
+     *
+     * @return The value
+     */
+    public char pop() {
+        return elements[-- size];
+    }
+
+    /**
+     * Creates an independent copy of this stack, with the same limits.
+     *
+     * @return The copy
+     */
+    public CharStack copy() {
+        CharStack copy = new CharStack(elements.length, maxDepth);
+        System.arraycopy(elements, 0, copy.elements, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Copies the values on this stack, from bottom to top.
+     *
+     * @return The values
+     */
+    public char[] toCharArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    /**
+     * Gets a read-only view of this stack, from bottom to top.
+     *
+     * @return The view
+     */
+    public List<Character> asList() {
+        return view;
+    }
+
+    @Override
+    public String toString() {
+        return view.toString();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files.
+ *
+ * <p>Classes are written as version 49, which is verified by type
+ * inference and so does not need stack map frames.</p>
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    private final String className;
+    private final String superName;
+
+    ClassFileWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    MethodWriter addMethod(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        MethodWriter method = new MethodWriter(this, access, name, descriptor, maxStack, maxLocals);
+        methods.add(method);
+        return method;
+    }
+
+    int utf8(String value) {
+        Integer index = poolIndex.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("U" + value);
+    }
+
+    int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register("I" + value);
+    }
+
+    int classRef(String internalName) {
+        return reference("C", 7, utf8(internalName), -1, internalName);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return reference("F", 9, classRef(owner), nameAndType(name, descriptor), owner + '.' + name + descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return reference("M", 10, classRef(owner), nameAndType(name, descriptor), owner + '.' + name + descriptor);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return reference("N", 12, utf8(name), utf8(descriptor), name + ':' + descriptor);
+    }
+
+    private int reference(String kind, int tag, int first, int second, String key) {
+        Integer index = poolIndex.get(kind + key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if (second >= 0) {
+                pool.writeShort(second);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(kind + key);
+    }
+
+    private int register(String key) {
+        if (poolSize > 0xFFFF) {
+            throw new IllegalStateException("Constant pool is too large.");
+        }
+        poolIndex.put(key, poolSize);
+        return poolSize ++;
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(className);
+        int superClass = classRef(superName);
+        int codeName = utf8("Code");
+        for (MethodWriter method : methods) {
+            method.resolve();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (MethodWriter method : methods) {
+                method.write(out, codeName);
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the bytecode of a single method.
+     */
+    static final class MethodWriter {
+
+        static final int ICONST_0 = 0x03;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int ILOAD = 0x15;
+        static final int ALOAD = 0x19;
+        static final int CALOAD = 0x34;
+        static final int ISTORE = 0x36;
+        static final int ASTORE = 0x3A;
+        static final int CASTORE = 0x55;
+        static final int DUP2 = 0x5C;
+        static final int IADD = 0x60;
+        static final int IMUL = 0x68;
+        static final int IINC = 0x84;
+        static final int I2C = 0x92;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        static final int IFLT = 0x9B;
+        static final int IFGE = 0x9C;
+        static final int IF_ICMPLT = 0xA1;
+        static final int IF_ICMPGE = 0xA2;
+        static final int GOTO = 0xA7;
+        static final int IRETURN = 0xAC;
+        static final int RETURN = 0xB1;
+        static final int GETFIELD = 0xB4;
+        static final int PUTFIELD = 0xB5;
+        static final int INVOKEVIRTUAL = 0xB6;
+        static final int INVOKESPECIAL = 0xB7;
+        static final int ARRAYLENGTH = 0xBE;
+        static final int ATHROW = 0xBF;
+        static final int WIDE = 0xC4;
+
+        private static final int MAX_CODE_LENGTH = 0xFFFF;
+
+        private final ClassFileWriter owner;
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+        private final int nameIndex;
+        private final int descriptorIndex;
+
+        private byte[] code = new byte[256];
+        private int length;
+
+        private int[] labels = new int[16];
+        private int labelCount;
+        private int[] jumps = new int[16];
+        private int[] jumpLabels = new int[16];
+        private int jumpCount;
+
+        private MethodWriter(ClassFileWriter owner, int access, String name, String descriptor, int maxStack, int maxLocals) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.nameIndex = owner.utf8(name);
+            this.descriptorIndex = owner.utf8(descriptor);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getDescriptor() {
+            return descriptor;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void op(int opcode, int index) {
+            put(opcode);
+            put(index >> 8);
+            put(index);
+        }
+
+        void local(int opcode, int index) {
+            put(opcode);
+            put(index);
+        }
+
+        void increment(int local, int amount) {
+            if (amount >= Byte.MIN_VALUE && amount <= Byte.MAX_VALUE) {
+                put(IINC);
+                put(local);
+                put(amount);
+            } else if (amount >= Short.MIN_VALUE && amount <= Short.MAX_VALUE) {
+                put(WIDE);
+                put(IINC);
+                put(local >> 8);
+                put(local);
+                put(amount >> 8);
+                put(amount);
+            } else {
+                local(ILOAD, local);
+                push(amount);
+                op(IADD);
+                local(ISTORE, local);
+            }
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put(value >> 8);
+                put(value);
+            } else {
+                op(LDC_W, owner.integer(value));
+            }
+        }
+
+        void field(int opcode, String fieldOwner, String fieldName, String fieldDescriptor) {
+            op(opcode, owner.fieldRef(fieldOwner, fieldName, fieldDescriptor));
+        }
+
+        void invoke(int opcode, String methodOwner, String methodName, String methodDescriptor) {
+            op(opcode, owner.methodRef(methodOwner, methodName, methodDescriptor));
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount << 1);
+            }
+            labels[labelCount] = -1;
+            return labelCount ++;
+        }
+
+        void mark(int label) {
+            labels[label] = length;
+        }
+
+        void jump(int opcode, int label) {
+            if (jumpCount == jumps.length) {
+                jumps = Arrays.copyOf(jumps, jumpCount << 1);
+                jumpLabels = Arrays.copyOf(jumpLabels, jumpCount << 1);
+            }
+            jumps[jumpCount] = length;
+            jumpLabels[jumpCount ++] = label;
+            put(opcode);
+            put(0);
+            put(0);
+        }
+
+        private void put(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length << 1);
+            }
+            code[length ++] = (byte) value;
+        }
+
+        private void resolve() {
+            if (length > MAX_CODE_LENGTH) {
+                throw new IllegalStateException("Method " + name + " is too large.");
+            }
+            for (int i = 0; i < jumpCount; i ++) {
+                int offset = labels[jumpLabels[i]] - jumps[i];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Branch in method " + name + " is too far.");
+                }
+                code[jumps[i] + 1] = (byte) (offset >> 8);
+                code[jumps[i] + 2] = (byte) offset;
+            }
+        }
+
+        private void write(DataOutputStream out, int codeName) throws IOException {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A webserver that handles every exchange on its own thread.
+ *
+ * <p>Exchanges run on virtual threads when the JVM supports them, and on a
+ * fixed pool of platform threads otherwise. Either way no more than the
+ * configured number of exchanges are handled at once.</p>
+ */
+final class ConcurrentServer {
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final HttpServer server;
+    private final ServerMetrics metrics;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean stopping = new AtomicBoolean();
+
+    ConcurrentServer(InetSocketAddress address, int threads, ServerMetrics metrics, boolean metricsEndpoint,
+            Handler handler) throws IOException {
+        this.server = HttpSupport.createServer(address);
+        this.metrics = metrics;
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            this.executor = virtualThreads;
+            this.permits = new Semaphore(threads);
+        } else {
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "wutlang-request-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.permits = null;
+        }
+        server.createContext("/", exchange -> {
+            // Counted before waiting for a permit, so the wait is part of the latency.
+            long arrival = metrics.arrived();
+            if (permits == null) {
+                handler.handle(exchange, arrival);
+                return;
+            }
+            permits.acquireUninterruptibly();
+            try {
+                handler.handle(exchange, arrival);
+            } finally {
+                permits.release();
+            }
+        });
+        if (metricsEndpoint) {
+            server.createContext(ServerMetrics.PATH, metrics::handle);
+        }
+        server.setExecutor(executor);
+        server.start();
+        metrics.register(server.getAddress().getPort());
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Blocks until this server has been stopped.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stops this server in the background, so it is safe to call from an exchange.
+     */
+    void stop() {
+        if (stopping.compareAndSet(false, true)) {
+            Thread thread = new Thread(() -> {
+                try {
+                    server.stop(2);
+                    executor.shutdown();
+                } finally {
+                    metrics.unregister();
+                    stopped.countDown();
+                }
+            }, "wutlang-server-stop");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Handles an exchange, on its own thread.
+     */
+    interface Handler {
+
+        /**
+         * Handles an exchange.
+         *
+         * @param exchange The exchange
+         * @param arrival The time it arrived, from {@link ServerMetrics#arrived()}
+         */
+        void handle(HttpExchange exchange, long arrival);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+/**
+ * The memory a program operates on.
+ *
+ * <p>A heap has a logical length that starts at its initial size and
+ * doubles whenever the cursor moves past it, up to an optional limit.
+ * Cells wrap around at their width.</p>
+ */
+public interface Heap {
+
+    /**
+     * Gets the width of a cell.
+     *
+     * @return The width in bits, either 8, 16 or 32
+     */
+    int getCellWidth();
+
+    /**
+     * Gets the logical length of this heap.
+     *
+     * @return The number of cells
+     */
+    int length();
+
+    /**
+     * Gets the value of a cell.
+     *
+     * @param index The index of the cell
+     * @return The value, or 0 if the index is past the length
+     */
+    int get(int index);
+
+    /**
+     * Sets the value of a cell, which must be within the length.
+     *
+     * @param index The index of the cell
+     * @param value The value, which is wrapped to the cell width
+     */
+    void set(int index, int value);
+
+    /**
+     * Adds to the value of a cell, which must be within the length.
+     *
+     * @param index The index of the cell
+     * @param delta The amount to add, wrapping at the cell width
+     */
+    void add(int index, int delta);
+
+    /**
+     * Grows the length of this heap until it includes the given index.
+     *
+     * @param index The index
+     * @return False if the heap may not grow that large
+     */
+    boolean ensureCapacity(int index);
+
+    /**
+     * Gets the size limit of this heap.
+     *
+     * @return The maximum size, in bytes
+     */
+    long getMaxBytes();
+
+    /**
+     * Sets every cell to zero and shrinks this heap back to its initial size.
+     */
+    void clear();
+
+    /**
+     * Creates an independent copy of this heap, with the same limits.
+     *
+     * @return The copy
+     */
+    Heap copy();
+
+    /**
+     * Copies this heap into a dense array. Cells wider than 16 bits are truncated.
+     *
+     * @return The copy
+     */
+    char[] toCharArray();
+
+    /**
+     * Copies this heap into a dense array.
+     *
+     * @return The copy
+     */
+    int[] toIntArray();
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Creates the webservers started by '$', and the streams of their exchanges.
+ */
+final class HttpSupport {
+
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private HttpSupport() {
+    }
+
+    /**
+     * Turns off Nagle's algorithm for the JDK server, unless the system
+     * property that controls it has been set already.
+     *
+     * @see Machine#enableNoDelay()
+     */
+    static void enableNoDelay() {
+        if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+    }
+
+    /**
+     * Creates a server. Connections are kept alive between exchanges, as
+     * long as every exchange reads its request and completes its response.
+     *
+     * @param address The address to listen on
+     * @return The server, which hasn't been started yet
+     * @throws IOException If the address can't be bound
+     */
+    static HttpServer createServer(InetSocketAddress address) throws IOException {
+        return HttpServer.create(address, 0);
+    }
+
+    /**
+     * Starts the response to an exchange.
+     *
+     * @param exchange The exchange
+     * @param length The length of the body, or 0 to send it in chunks until the body is closed
+     * @param chunked Whether to always send the body in chunks
+     * @throws IOException If the headers can't be sent
+     */
+    static void sendHeaders(HttpExchange exchange, int length, boolean chunked) throws IOException {
+        exchange.sendResponseHeaders(200, chunked ? 0 : length);
+    }
+
+    /**
+     * Creates the input of an exchange, which is the local address, the
+     * method and the path without its leading '/', followed by the body.
+     *
+     * @param exchange The exchange
+     * @return The input
+     */
+    static InputStream requestInput(HttpExchange exchange) {
+        byte[] address = exchange.getLocalAddress().getAddress().getAddress();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        int pathStart = path.startsWith("/") ? 1 : 0;
+        byte[] head;
+        if (isAscii(path)) {
+            // The common case, written straight into a single array.
+            head = new byte[address.length + method.length() + path.length() - pathStart];
+            int position = address.length;
+            System.arraycopy(address, 0, head, 0, position);
+            position = copyAscii(method, 0, head, position);
+            copyAscii(path, pathStart, head, position);
+        } else {
+            byte[] pathBytes = path.substring(pathStart).getBytes(StandardCharsets.UTF_8);
+            head = new byte[address.length + method.length() + pathBytes.length];
+            System.arraycopy(address, 0, head, 0, address.length);
+            int position = copyAscii(method, 0, head, address.length);
+            System.arraycopy(pathBytes, 0, head, position, pathBytes.length);
+        }
+        return new RequestInput(head, exchange.getRequestBody());
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i ++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int copyAscii(String value, int from, byte[] bytes, int position) {
+        for (int i = from; i < value.length(); i ++) {
+            bytes[position ++] = (byte) value.charAt(i);
+        }
+        return position;
+    }
+
+    /**
+     * Reads the bytes describing a request, then its body.
+     */
+    private static final class RequestInput extends InputStream {
+
+        private final byte[] head;
+        private final InputStream body;
+        private int position;
+
+        private RequestInput(byte[] head, InputStream body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position < head.length) {
+                return head[position ++] & 0xFF;
+            }
+            return body.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position < head.length) {
+                int count = Math.min(length, head.length - position);
+                System.arraycopy(head, position, bytes, offset, count);
+                position += count;
+                return count;
+            }
+            return body.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (position < head.length) {
+                return head.length - position;
+            }
+            return body.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Reads what is left of the body, so the connection can be reused.
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The input of a program.
+ *
+ * <p>Every stream is read ahead a buffer at a time, rather than a byte at
+ * a time. Each stream keeps its own buffer, so switching to another stream
+ * and back again doesn't lose the bytes that were read ahead. Buffers are
+ * reused once their stream is discarded.</p>
+ *
+ * <p>A read at the end of a stream returns -1, but the stream may still
+ * return more bytes later, like a console does after end of input.</p>
+ */
+final class InputChannel {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_SOURCES = 4;
+
+    private final Source[] sources = new Source[MAX_SOURCES];
+    private Source current;
+    private long uses;
+
+    InputChannel() {
+        for (int i = 0; i < MAX_SOURCES; i ++) {
+            sources[i] = new Source();
+        }
+        current = sources[0];
+    }
+
+    /**
+     * Reads a byte from a stream.
+     *
+     * @param stream The stream
+     * @return The byte, or -1 at the end of the stream
+     * @throws IOException If reading fails
+     */
+    int read(InputStream stream) throws IOException {
+        Source source = current;
+        if (source.stream == stream && source.position < source.limit) {
+            return source.buffer[source.position ++] & 0xFF;
+        }
+        source = source(stream);
+        if (source.position == source.limit && !source.fill()) {
+            return -1;
+        }
+        return source.buffer[source.position ++] & 0xFF;
+    }
+
+    /**
+     * Checks whether the next read from a stream is answered from its buffer.
+     *
+     * @param stream The stream
+     * @return True if the read won't touch the stream
+     */
+    boolean isReady(InputStream stream) {
+        Source source = current;
+        if (source.stream != stream) {
+            source = find(stream);
+            if (source == null) {
+                return false;
+            }
+        }
+        return source.position < source.limit || source.ended;
+    }
+
+    /**
+     * Gets the number of bytes that can be read from a stream without blocking.
+     *
+     * @param stream The stream
+     * @return The number of bytes, or 1 if the end of the stream was reached
+     * @throws IOException If the stream fails
+     */
+    int available(InputStream stream) throws IOException {
+        Source source = source(stream);
+        if (source.position < source.limit || source.ended) {
+            return Math.max(source.limit - source.position, 1);
+        }
+        return stream.available();
+    }
+
+    /**
+     * Waits until a stream has bytes to read, or reaches its end.
+     *
+     * @param stream The stream
+     * @throws IOException If reading fails
+     */
+    void await(InputStream stream) throws IOException {
+        Source source = source(stream);
+        if (source.position == source.limit && !source.ended) {
+            source.ended = !source.fill();
+        }
+    }
+
+    /**
+     * Gets the number of bytes read ahead from a stream.
+     *
+     * @param stream The stream
+     * @return The number of bytes
+     */
+    int buffered(InputStream stream) {
+        Source source = find(stream);
+        return source == null ? 0 : source.limit - source.position;
+    }
+
+    /**
+     * Drops the bytes read ahead from a stream, which won't be read again.
+     *
+     * @param stream The stream
+     */
+    void discard(InputStream stream) {
+        for (Source source : sources) {
+            if (source.stream == stream) {
+                source.reset(null);
+            }
+        }
+    }
+
+    /**
+     * Drops the bytes read ahead from every stream.
+     */
+    void clear() {
+        for (Source source : sources) {
+            source.reset(null);
+        }
+    }
+
+    private Source find(InputStream stream) {
+        for (Source source : sources) {
+            if (source.stream == stream) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    private Source source(InputStream stream) {
+        Source free = null;
+        for (Source source : sources) {
+            if (source.stream == stream) {
+                current = source;
+                return source;
+            }
+            if (free == null && source.position == source.limit && !source.ended) {
+                free = source;
+            }
+        }
+        if (free == null) {
+            // Only happens with more streams than a machine ever has, and drops the least recently used.
+            free = sources[0];
+            for (Source source : sources) {
+                if (source.lastUse < free.lastUse) {
+                    free = source;
+                }
+            }
+        }
+        free.reset(stream);
+        current = free;
+        return free;
+    }
+
+    private final class Source {
+
+        private InputStream stream;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private boolean ended;
+        private long lastUse;
+
+        void reset(InputStream stream) {
+            this.stream = stream;
+            this.position = 0;
+            this.limit = 0;
+            this.ended = false;
+        }
+
+        /**
+         * Reads ahead, blocking until at least one byte arrives.
+         *
+         * @return False at the end of the stream
+         */
+        boolean fill() throws IOException {
+            lastUse = ++ uses;
+            if (ended) {
+                // The end was already found while waiting, and is reported once.
+                ended = false;
+                return false;
+            }
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            int read;
+            do {
+                read = stream.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            position = 0;
+            limit = Math.max(read, 0);
+            return read > 0;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static com.me4502.wutlang.ClassFileWriter.MethodWriter.*;
+
+import com.me4502.wutlang.ClassFileWriter.MethodWriter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a {@link Program} into a JVM class.
+ *
+ * <p>The heap and cursor live in local variables, and every loop becomes a
+ * backwards branch, so HotSpot can optimize the program like hand written
+ * Java. Loops that are too large for a single method are moved into their
+ * own methods, as are long runs of straight line code.</p>
+ */
+public final class JitCompiler {
+
+    private static final String BASE_CLASS = "com/me4502/wutlang/JitProgram";
+    private static final String CLASS_PREFIX = "com/me4502/wutlang/jit/CompiledProgram";
+    private static final String SECTION_DESCRIPTOR = "(I)I";
+
+    /**
+     * The most instructions compiled into one method. This keeps methods
+     * below the 8000 bytes HotSpot is willing to compile, and well within
+     * the 32KiB branch range.
+     */
+    private static final int MAX_METHOD_COST = 400;
+
+    private static final int CURSOR = 1;
+    private static final int HEAP = 2;
+    private static final int TARGET = 3;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private final byte[] code;
+    private final int[] operands;
+    private final int[] operands2;
+    private final int[] loopCosts;
+    private final int start;
+    private final ClassFileWriter writer;
+    private int sectionCounter;
+
+    private JitCompiler(Program program, String className) {
+        this.code = program.getCode();
+        this.operands = program.getOperands();
+        this.operands2 = program.getOperands2();
+        this.loopCosts = new int[code.length];
+        this.start = program.getStart();
+        this.writer = new ClassFileWriter(className, BASE_CLASS);
+    }
+
+    /**
+     * Compiles a program.
+     *
+     * @param program The program
+     * @return A new instance of the compiled program, or null if it is too large to compile
+     */
+    public static JitProgram compile(Program program) {
+        Class<? extends JitProgram> compiled = compileClass(program);
+        return compiled == null ? null : newInstance(compiled);
+    }
+
+    /**
+     * Compiles a program into a class, which has a public no-argument constructor.
+     *
+     * @param program The program
+     * @return The class, or null if the program is too large to compile
+     */
+    static Class<? extends JitProgram> compileClass(Program program) {
+        String className = CLASS_PREFIX + classCounter.incrementAndGet();
+        JitCompiler compiler = new JitCompiler(program, className);
+        byte[] bytes;
+        try {
+            bytes = compiler.generate();
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        return new JitClassLoader().define(className.replace('/', '.'), bytes).asSubclass(JitProgram.class);
+    }
+
+    static JitProgram newInstance(Class<? extends JitProgram> compiled) {
+        try {
+            return compiled.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create compiled program.", e);
+        }
+    }
+
+    private byte[] generate() {
+        computeLoopCosts();
+
+        MethodWriter constructor = writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1);
+        constructor.local(ALOAD, 0);
+        constructor.invoke(INVOKESPECIAL, BASE_CLASS, "<init>", "()V");
+        constructor.op(RETURN);
+
+        MethodWriter run = newSection(ClassFileWriter.ACC_PROTECTED, "run");
+        // The instructions before the start only build the initial image, which the machine runs itself if needed.
+        Section section = new Section(run, start, code.length);
+        emitSequence(section, start, code.length);
+        finishSection(section);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Computes the cost of every plain loop, which is the number of
+     * instructions it takes when compiled inline.
+     */
+    private void computeLoopCosts() {
+        int[] costStack = new int[16];
+        int depth = 0;
+        for (int pc = 0; pc < code.length; ) {
+            if (code[pc] == Opcode.LOOP_START) {
+                int extent = extent(pc);
+                if (extent != operands[pc] + 1) {
+                    costStack[depth] += extent - pc;
+                    pc = extent;
+                    continue;
+                }
+                if (++ depth == costStack.length) {
+                    costStack = Arrays.copyOf(costStack, depth << 1);
+                }
+                costStack[depth] = 0;
+            } else if (code[pc] == Opcode.LOOP_END) {
+                int start = operands[pc];
+                loopCosts[start] = costStack[depth --] + 2;
+                costStack[depth] += loopCosts[start] > MAX_METHOD_COST ? 1 : loopCosts[start];
+            } else {
+                costStack[depth] ++;
+            }
+            pc ++;
+        }
+    }
+
+    /**
+     * Gets the end of the item starting at pc. Loops that are followed by
+     * an unoptimized fallback copy are a single item together with it.
+     */
+    private int extent(int pc) {
+        if (code[pc] != Opcode.LOOP_START) {
+            return pc + 1;
+        }
+        int end = operands[pc] + 1;
+        for (int i = pc; i < end; i ++) {
+            if ((code[i] == Opcode.JUMP || code[i] == Opcode.MUL_GUARD || code[i] == Opcode.HEAP_GUARD) && operands[i] > end) {
+                end = operands[i];
+            }
+        }
+        return end;
+    }
+
+    private boolean isOutlined(int pc) {
+        return code[pc] == Opcode.LOOP_START && loopCosts[pc] > MAX_METHOD_COST;
+    }
+
+    private int cost(int pc) {
+        if (code[pc] != Opcode.LOOP_START) {
+            return 1;
+        }
+        int extent = extent(pc);
+        if (extent != operands[pc] + 1) {
+            return extent - pc;
+        }
+        return loopCosts[pc] > MAX_METHOD_COST ? 1 : loopCosts[pc];
+    }
+
+    private void emitSequence(Section section, int from, int to) {
+        int total = 0;
+        for (int pc = from; pc < to; pc = extent(pc)) {
+            total += cost(pc);
+        }
+        if (total <= MAX_METHOD_COST) {
+            emitInline(section, from, to);
+            return;
+        }
+
+        int chunkStart = from;
+        int chunkCost = 0;
+        for (int pc = from; pc < to; pc = extent(pc)) {
+            int cost = cost(pc);
+            if (chunkCost > 0 && chunkCost + cost > MAX_METHOD_COST) {
+                emitCall(section.method, outlineChunk(chunkStart, pc));
+                chunkStart = pc;
+                chunkCost = 0;
+            }
+            chunkCost += cost;
+        }
+        emitCall(section.method, outlineChunk(chunkStart, to));
+    }
+
+    private void emitInline(Section section, int from, int to) {
+        for (int pc = from; pc < to; ) {
+            section.mark(pc);
+            if (isOutlined(pc)) {
+                emitCall(section.method, outlineLoop(pc));
+                pc = operands[pc] + 1;
+            } else {
+                emitInstruction(section, pc);
+                pc ++;
+            }
+        }
+        section.mark(to);
+    }
+
+    private MethodWriter outlineChunk(int from, int to) {
+        MethodWriter method = newSection(ClassFileWriter.ACC_PRIVATE, "section" + (sectionCounter ++));
+        Section section = new Section(method, from, to);
+        emitInline(section, from, to);
+        finishSection(section);
+        return method;
+    }
+
+    private MethodWriter outlineLoop(int start) {
+        int end = operands[start];
+        MethodWriter method = newSection(ClassFileWriter.ACC_PRIVATE, "loop" + (sectionCounter ++));
+        Section section = new Section(method, start, end + 1);
+        int exit = method.newLabel();
+        int body = method.newLabel();
+        loadCell(method);
+        method.jump(IFEQ, exit);
+        method.mark(body);
+        emitSequence(section, start + 1, end);
+        loadCell(method);
+        method.jump(IFNE, body);
+        method.mark(exit);
+        finishSection(section);
+        return method;
+    }
+
+    private MethodWriter newSection(int access, String name) {
+        MethodWriter method = writer.addMethod(access, name, SECTION_DESCRIPTOR, 6, 4);
+        method.local(ALOAD, 0);
+        method.field(GETFIELD, BASE_CLASS, "heap", "[C");
+        method.local(ASTORE, HEAP);
+        return method;
+    }
+
+    private void finishSection(Section section) {
+        section.method.local(ILOAD, CURSOR);
+        section.method.op(IRETURN);
+    }
+
+    private void emitCall(MethodWriter caller, MethodWriter callee) {
+        caller.local(ALOAD, 0);
+        caller.local(ILOAD, CURSOR);
+        caller.invoke(INVOKESPECIAL, writer.getClassName(), callee.getName(), callee.getDescriptor());
+        caller.local(ISTORE, CURSOR);
+        reloadHeap(caller);
+    }
+
+    private void emitInstruction(Section section, int pc) {
+        MethodWriter method = section.method;
+        switch (code[pc]) {
+            case Opcode.LEFT:
+                emitMove(method, pc, -1);
+                break;
+            case Opcode.RIGHT:
+                emitMove(method, pc, 1);
+                break;
+            case Opcode.MOVE:
+                emitMove(method, pc, operands[pc]);
+                break;
+            case Opcode.INCREMENT:
+                emitAdd(method, 1);
+                break;
+            case Opcode.DECREMENT:
+                emitAdd(method, -1);
+                break;
+            case Opcode.ADD:
+                emitAdd(method, operands[pc]);
+                break;
+            case Opcode.CLEAR:
+                method.local(ALOAD, HEAP);
+                method.local(ILOAD, CURSOR);
+                method.op(ICONST_0);
+                method.op(CASTORE);
+                break;
+            case Opcode.LOOP_START:
+                loadCell(method);
+                method.jump(IFEQ, section.label(operands[pc] + 1));
+                break;
+            case Opcode.LOOP_END:
+                loadCell(method);
+                method.jump(IFNE, section.label(operands[pc] + 1));
+                break;
+            case Opcode.SCAN:
+                int head = method.newLabel();
+                int exit = method.newLabel();
+                method.mark(head);
+                loadCell(method);
+                method.jump(IFEQ, exit);
+                emitMove(method, pc, operands[pc]);
+                method.jump(GOTO, head);
+                method.mark(exit);
+                break;
+            case Opcode.MUL:
+                emitMultiply(method, pc, operands[pc], operands2[pc]);
+                break;
+            case Opcode.MUL_GUARD:
+                method.local(ILOAD, CURSOR);
+                method.push(operands2[pc]);
+                method.op(IADD);
+                method.jump(IFLT, section.label(operands[pc]));
+                break;
+            case Opcode.JUMP:
+                method.jump(GOTO, section.label(operands[pc]));
+                break;
+            case Opcode.HEAP_GUARD:
+                method.local(ILOAD, CURSOR);
+                method.push(operands2[pc]);
+                method.op(IADD);
+                method.local(ALOAD, HEAP);
+                method.op(ARRAYLENGTH);
+                method.jump(IF_ICMPGE, section.label(operands[pc]));
+                break;
+            case Opcode.MOVE_UNCHECKED:
+                method.increment(CURSOR, operands[pc]);
+                break;
+            default:
+                method.local(ALOAD, 0);
+                method.push(pc);
+                method.local(ILOAD, CURSOR);
+                method.invoke(INVOKEVIRTUAL, BASE_CLASS, "invoke", "(II)I");
+                method.local(ISTORE, CURSOR);
+                reloadHeap(method);
+                break;
+        }
+    }
+
+    private void emitMove(MethodWriter method, int pc, int amount) {
+        int done = method.newLabel();
+        method.increment(CURSOR, amount);
+        if (amount < 0) {
+            method.local(ILOAD, CURSOR);
+            method.jump(IFGE, done);
+            method.local(ALOAD, 0);
+            method.push(pc);
+            method.local(ILOAD, CURSOR);
+            method.invoke(INVOKEVIRTUAL, BASE_CLASS, "underflow", "(II)Lcom/me4502/wutlang/ParsingException;");
+            method.op(ATHROW);
+        } else {
+            emitEnsureCapacity(method, pc, CURSOR, done);
+        }
+        method.mark(done);
+    }
+
+    private void emitEnsureCapacity(MethodWriter method, int pc, int indexLocal, int done) {
+        method.local(ILOAD, indexLocal);
+        method.local(ALOAD, HEAP);
+        method.op(ARRAYLENGTH);
+        method.jump(IF_ICMPLT, done);
+        method.local(ALOAD, 0);
+        method.push(pc);
+        method.local(ILOAD, CURSOR);
+        method.local(ILOAD, indexLocal);
+        method.invoke(INVOKEVIRTUAL, BASE_CLASS, "expand", "(III)[C");
+        method.local(ASTORE, HEAP);
+    }
+
+    private void emitAdd(MethodWriter method, int amount) {
+        method.local(ALOAD, HEAP);
+        method.local(ILOAD, CURSOR);
+        method.op(DUP2);
+        method.op(CALOAD);
+        method.push(amount);
+        method.op(IADD);
+        method.op(I2C);
+        method.op(CASTORE);
+    }
+
+    private void emitMultiply(MethodWriter method, int pc, int offset, int factor) {
+        method.local(ILOAD, CURSOR);
+        method.push(offset);
+        method.op(IADD);
+        method.local(ISTORE, TARGET);
+        if (offset > 0) {
+            int done = method.newLabel();
+            emitEnsureCapacity(method, pc, TARGET, done);
+            method.mark(done);
+        }
+        method.local(ALOAD, HEAP);
+        method.local(ILOAD, TARGET);
+        method.op(DUP2);
+        method.op(CALOAD);
+        loadCell(method);
+        method.push(factor);
+        method.op(IMUL);
+        method.op(IADD);
+        method.op(I2C);
+        method.op(CASTORE);
+    }
+
+    private void loadCell(MethodWriter method) {
+        method.local(ALOAD, HEAP);
+        method.local(ILOAD, CURSOR);
+        method.op(CALOAD);
+    }
+
+    private void reloadHeap(MethodWriter method) {
+        method.local(ALOAD, 0);
+        method.field(GETFIELD, BASE_CLASS, "heap", "[C");
+        method.local(ASTORE, HEAP);
+    }
+
+    /**
+     * A generated method, covering a range of instructions.
+     */
+    private static final class Section {
+
+        private final MethodWriter method;
+        private final int from;
+        private final int[] labels;
+
+        private Section(MethodWriter method, int from, int to) {
+            this.method = method;
+            this.from = from;
+            this.labels = new int[to - from + 1];
+            for (int i = 0; i < labels.length; i ++) {
+                labels[i] = method.newLabel();
+            }
+        }
+
+        private int label(int pc) {
+            return labels[pc - from];
+        }
+
+        private void mark(int pc) {
+            method.mark(label(pc));
+        }
+    }
+
+    /**
+     * Loads each compiled program in its own loader, so it can be unloaded
+     * once it is no longer used.
+     */
+    private static final class JitClassLoader extends ClassLoader {
+
+        private JitClassLoader() {
+            super(JitProgram.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+/**
+ * Base class of the classes generated by {@link JitCompiler}.
+ *
+ * <p>Generated code keeps the heap and cursor in local variables, and calls
+ * back into this class whenever the heap has to grow or an instruction
+ * needs the machine, such as I/O.</p>
+ */
+public abstract class JitProgram {
+
+    private Machine machine;
+
+    /**
+     * The current heap, kept in sync with the machine.
+     */
+    protected char[] heap;
+
+    protected JitProgram() {
+    }
+
+    final void execute(Machine machine) throws ParsingException {
+        this.machine = machine;
+        this.heap = ((ArrayHeap) machine.heap()).array();
+        try {
+            machine.finish(run(machine.getCursor()));
+        } finally {
+            this.machine = null;
+            this.heap = null;
+        }
+    }
+
+    /**
+     * Runs the compiled program.
+     *
+     * @param cursor The starting cursor
+     * @return The final cursor
+     * @throws ParsingException If the program fails
+     */
+    protected abstract int run(int cursor) throws ParsingException;
+
+    /**
+     * Grows the heap to include the given index.
+     *
+     * @param pc The instruction index
+     * @param cursor The current cursor
+     * @param index The index
+     * @return The new heap
+     * @throws ParsingException If the heap limit is exceeded
+     */
+    protected final char[] expand(int pc, int cursor, int index) throws ParsingException {
+        machine.expandHeap(pc, cursor, index);
+        return heap = ((ArrayHeap) machine.heap()).array();
+    }
+
+    /**
+     * Creates the exception for an instruction that moved the cursor below zero.
+     *
+     * @param pc The instruction index
+     * @param cursor The negative cursor
+     * @return The exception to throw
+     */
+    protected final ParsingException underflow(int pc, int cursor) {
+        return machine.cursorUnderflow(pc, cursor);
+    }
+
+    /**
+     * Executes an instruction that is not compiled inline.
+     *
+     * @param pc The instruction index
+     * @param cursor The current cursor
+     * @return The cursor after the instruction
+     * @throws ParsingException If the instruction fails
+     */
+    protected final int invoke(int pc, int cursor) throws ParsingException {
+        cursor = machine.invoke(pc, cursor);
+        heap = ((ArrayHeap) machine.heap()).array();
+        return cursor;
+    }
+}
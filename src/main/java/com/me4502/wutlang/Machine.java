@@ -0,0 +1,1612 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs compiled programs.
+ *
+ * <p>A machine holds everything that changes while a program runs: the
+ * heap, cursor and stack, and the open files, streams and webservers.
+ * Running a program again continues from where the last run ended, and
+ * {@link #reset()} returns the machine to its initial state, so machines
+ * can be pooled. A machine must only be used by one thread at a time.</p>
+ */
+public final class Machine {
+
+    static final int FINISHED = 0;
+    static final int YIELDED = 1;
+    static final int PARKED = 2;
+
+    private Program program;
+    private Engine engine = Engine.INTERPRETER;
+    private boolean debug;
+    private int serverThreads;
+    private long requestTimeout;
+    private long connectionTimeout;
+    private boolean chunkedResponses;
+    private boolean mapFiles;
+    private Profiler profiler;
+    private Path snapshotFile;
+    private int dumpFrom;
+    private int dumpTo = Integer.MAX_VALUE;
+
+    private int pc;
+    private long deadline;
+    private long iterations;
+    private long iterationLimit = Long.MAX_VALUE;
+    private int period = Integer.MAX_VALUE;
+    private int countdown = Integer.MAX_VALUE;
+
+    private boolean blocking = true;
+    private IoWait waiting;
+    private boolean exchangeWaited;
+    private PendingExchange prefetchedExchange;
+
+    private int cursor = 0;
+
+    private Heap heap = new ArrayHeap();
+
+    private CharStack stack = new CharStack();
+
+    private ChannelFile file;
+    private String fileName;
+    private long sharedFilePosition;
+
+    private OutputStream fileOutput;
+    private OutputStream netOutput;
+
+    private InputStream fileInput;
+    private InputStream netInput;
+
+    private boolean networkStreamOpen = false;
+
+    private final OutputChannel output = new OutputChannel();
+    private final InputChannel inputs = new InputChannel();
+    private InputStream input;
+    private boolean consoleReadAhead = true;
+
+    private InputStream consoleInput;
+    private OutputStream consoleOutput;
+
+    private volatile HttpServer server;
+    private BlockingQueue<PendingExchange> pendingExchanges;
+    private volatile ConcurrentServer concurrentServer;
+    private volatile boolean serverStopped;
+    private boolean metricsEndpoint;
+    private volatile ServerMetrics metrics;
+    private long exchangeArrival;
+
+    public Machine() {
+    }
+
+    /**
+     * Creates the machine that handles a single request to a concurrent webserver.
+     */
+    private Machine(Machine parent) {
+        this.program = parent.program;
+        this.debug = parent.debug;
+        this.consoleInput = parent.consoleInput;
+        this.consoleOutput = parent.consoleOutput;
+        this.requestTimeout = parent.requestTimeout;
+        this.chunkedResponses = parent.chunkedResponses;
+        this.dumpFrom = parent.dumpFrom;
+        this.dumpTo = parent.dumpTo;
+        this.mapFiles = parent.mapFiles;
+        this.cursor = parent.cursor;
+        this.heap = parent.heap.copy();
+        this.stack = parent.stack.copy();
+        // Replaced with a read-only copy when the request is handled.
+        this.file = parent.file;
+        this.fileName = parent.fileName;
+        this.sharedFilePosition = parent.fileInputPosition();
+        this.concurrentServer = parent.concurrentServer;
+        this.metrics = parent.metrics;
+        // Bytes read ahead from a shared console would be lost when the request ends.
+        this.consoleReadAhead = false;
+    }
+
+    /**
+     * Gets the program this machine is running, or ran last.
+     *
+     * @return The program, or null
+     */
+    public Program getProgram() {
+        return this.program;
+    }
+
+    public int getLineNum() {
+        return this.program == null ? 0 : this.program.getLine(this.pc);
+    }
+
+    public int getColumnNum() {
+        return this.program == null ? 0 : this.program.getColumn(this.pc);
+    }
+
+    public int getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Gets the number of loop iterations interpreted since this machine
+     * was created or reset. Loops run by the JIT aren't counted.
+     *
+     * @return The iteration count
+     */
+    public long getIterations() {
+        return this.iterations + this.period - this.countdown;
+    }
+
+    /**
+     * Sets the streams used by 'c' and 'r', and by default at the start of
+     * a run. Heap dumps and webserver addresses are written there as well.
+     *
+     * @param input The console input, or null for {@link System#in}
+     * @param output The console output, or null for {@link System#out}
+     */
+    public void setConsole(InputStream input, OutputStream output) {
+        inputs.discard(consoleInput());
+        this.consoleInput = input;
+        this.consoleOutput = output;
+    }
+
+    /**
+     * Gets a copy of the heap.
+     *
+     * @return The heap, truncated to 16-bit cells
+     */
+    public char[] getHeap() {
+        return this.heap.toCharArray();
+    }
+
+    Heap heap() {
+        return this.heap;
+    }
+
+    /**
+     * Sets the heap this program operates on.
+     *
+     * <p>Only an {@link ArrayHeap} can be used by the JIT, programs using
+     * another heap are always interpreted.</p>
+     *
+     * @param heap The heap
+     */
+    public void setHeap(Heap heap) {
+        this.heap = heap;
+    }
+
+    /**
+     * Gets a read-only view of the stack, from bottom to top. The stack holds
+     * 16-bit values whatever the cell width, and pushing a wider value fails.
+     *
+     * @return The stack
+     */
+    public List<Character> getStack() {
+        return this.stack.asList();
+    }
+
+    /**
+     * Sets the size limits of the stack. Any values already on it are discarded.
+     *
+     * @param initialCapacity The number of values to allocate up front
+     * @param maxDepth The maximum number of values
+     */
+    public void setStackLimits(int initialCapacity, int maxDepth) {
+        this.stack = new CharStack(initialCapacity, maxDepth);
+    }
+
+    /**
+     * Sets the engine used to run programs.
+     *
+     * <p>Programs that are too large for the JIT are interpreted instead.</p>
+     *
+     * @param engine The engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets how webservers started by this program handle requests.
+     *
+     * <p>With zero threads, which is the default, a single exchange at a
+     * time is handed to the program itself. Otherwise every exchange gets
+     * its own copy of the heap, cursor and stack, taken when the server was
+     * started, and runs the instructions following '$' up to the next '%'.
+     * The program itself waits until the server is stopped, then continues
+     * after that '%'.</p>
+     *
+     * <p>A file the program has open can be read by every request, each
+     * from where the program was at, but not written to. A request that
+     * runs past the timeout is stopped, closing its connection if it is
+     * blocked reading or writing it.</p>
+     *
+     * @param threads The maximum number of requests handled at once, or 0
+     * @param requestTimeout The time a request may run for in milliseconds, or 0 for no limit
+     */
+    public void setServerMode(int threads, long requestTimeout) {
+        this.serverThreads = threads;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Sends small webserver responses right away. The JDK server leaves
+     * Nagle's algorithm on, so otherwise a small response waits for the
+     * client's delayed ACK, about 40ms, on every request.
+     *
+     * <p>This sets the {@code sun.net.httpserver.nodelay} system property,
+     * unless it is set already, so it applies to every JDK webserver in the
+     * JVM. The property is read once, when the first server is created, so
+     * this must be called before any are.</p>
+     */
+    public static void enableNoDelay() {
+        HttpSupport.enableNoDelay();
+    }
+
+    /**
+     * Sets how long '@' and '!' wait for a request to arrive.
+     *
+     * @param connectionTimeout The timeout in milliseconds, or 0 to wait forever
+     */
+    public void setConnectionTimeout(long connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Sets whether responses are always sent in chunks, ending when the
+     * network stream is closed with '%'. Otherwise the current cell gives
+     * the length of each response when it starts, and a length of 0 sends
+     * it in chunks.
+     *
+     * @param chunkedResponses True to always send responses in chunks
+     */
+    public void setChunkedResponses(boolean chunkedResponses) {
+        this.chunkedResponses = chunkedResponses;
+    }
+
+    /**
+     * Gets the address of the running webserver.
+     *
+     * @return The address, or null if no webserver is running
+     */
+    public InetSocketAddress getServerAddress() {
+        ConcurrentServer concurrentServer = this.concurrentServer;
+        if (concurrentServer != null) {
+            return concurrentServer.getAddress();
+        }
+        HttpServer server = this.server;
+        return server == null ? null : server.getAddress();
+    }
+
+    /**
+     * Stops the webserver.
+     *
+     * <p>A program waiting for a request ends normally, and one serving
+     * requests concurrently continues after the request handler.</p>
+     */
+    public void stopServer() {
+        serverStopped = true;
+        ConcurrentServer concurrentServer = this.concurrentServer;
+        if (concurrentServer != null) {
+            concurrentServer.stop();
+        } else {
+            stopSingleServer();
+        }
+    }
+
+    /**
+     * Sets whether webservers started by this program serve their metrics
+     * from {@link ServerMetrics#PATH}.
+     *
+     * @param metricsEndpoint True to serve the metrics
+     */
+    public void setMetricsEndpoint(boolean metricsEndpoint) {
+        this.metricsEndpoint = metricsEndpoint;
+    }
+
+    /**
+     * Gets the metrics of the webserver this program started last.
+     *
+     * @return The metrics, or null if no webserver was started
+     */
+    public ServerMetrics getServerMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets whether files opened by the program are memory-mapped for reading.
+     *
+     * @param mapFiles True to map files
+     */
+    public void setMappedFiles(boolean mapFiles) {
+        this.mapFiles = mapFiles;
+    }
+
+    /**
+     * Sets whether output is written on a background thread, so a slow
+     * stream doesn't hold up the program. The program only waits for the
+     * thread when its buffer is full, when it switches or closes a stream,
+     * and before reading input. A failed write fails the next instruction
+     * that writes or flushes output.
+     *
+     * @param capacity The size of the buffer in bytes, or 0 to write on the program's thread
+     */
+    public void setAsyncOutput(int capacity) {
+        this.output.setAsync(capacity);
+    }
+
+    /**
+     * Sets where ':' writes a snapshot of the program, instead of dumping
+     * the heap. The file is replaced by every ':'. Requests handled by a
+     * concurrent webserver still dump the heap.
+     *
+     * @param snapshotFile The file, or null to dump the heap
+     * @see #run(Program, Snapshot)
+     */
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Sets the cells ':' dumps. Cells past the end of the heap are left out.
+     *
+     * @param from The first cell
+     * @param to The cell after the last one
+     */
+    public void setDumpRange(int from, int to) {
+        this.dumpFrom = from;
+        this.dumpTo = to;
+    }
+
+    /**
+     * Sets the profiler that collects statistics while the program runs.
+     *
+     * <p>Profiled programs always run on the interpreter.</p>
+     *
+     * @param profiler The profiler, or null to stop profiling
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets whether every written byte is traced to the error stream.
+     *
+     * @param debug If tracing is enabled
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Runs a program, starting from the current heap, cursor and stack.
+     *
+     * @param program The program
+     * @throws ParsingException If the program fails
+     */
+    public void run(Program program) throws ParsingException {
+        this.program = program;
+        this.pc = 0;
+        setOutput(consoleOutput());
+        input = consoleInput();
+
+        boolean completed = false;
+        try {
+            JitProgram jitProgram = null;
+            if (engine == Engine.JIT && heap instanceof ArrayHeap && profiler == null) {
+                jitProgram = program.newJitProgram();
+            }
+            if (jitProgram != null) {
+                if (loadImage() == 0) {
+                    // The compiled code begins after the instructions that build the image.
+                    interpret(0, program.getStart());
+                }
+                try {
+                    jitProgram.execute(this);
+                } catch (Jumped e) {
+                    interpret(pc + 1, program.size());
+                }
+            } else if (profiler != null) {
+                interpretProfiled();
+            } else {
+                interpret(loadImage(), program.size());
+            }
+            completed = true;
+        } catch (ServerStopped e) {
+            completed = true;
+        } finally {
+            closeOutput(completed);
+        }
+    }
+
+    /**
+     * Resumes a program from a snapshot taken by ':'. The heap, cursor and
+     * stack are replaced, the file that was open is opened again and read
+     * from where it was, and the webserver that was running is started
+     * again on the same port.
+     *
+     * <p>Compiled code can only start at the beginning of a program, so a
+     * resumed program is always interpreted, and isn't profiled.</p>
+     *
+     * @param program The program the snapshot was taken from
+     * @param snapshot The snapshot
+     * @throws ParsingException If the snapshot doesn't fit this program or machine, or the program fails
+     */
+    public void run(Program program, Snapshot snapshot) throws ParsingException {
+        this.program = program;
+        this.pc = 0;
+        setOutput(consoleOutput());
+        input = consoleInput();
+
+        boolean completed = false;
+        try {
+            restore(snapshot);
+            interpret(snapshot.getPc(), program.size());
+            completed = true;
+        } catch (ServerStopped e) {
+            completed = true;
+        } finally {
+            closeOutput(completed);
+        }
+    }
+
+    private void closeOutput(boolean completed) throws ParsingException {
+        try {
+            output.close();
+        } catch (IOException e) {
+            if (completed) {
+                throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+            }
+        }
+    }
+
+    private void restore(Snapshot snapshot) throws ParsingException {
+        if (!snapshot.matches(program)) {
+            throw new ParsingException("Snapshot was taken from a different program or optimization level.", 0, 0);
+        }
+        if (snapshot.getCellWidth() != heap.getCellWidth()) {
+            throw new ParsingException("Snapshot has " + snapshot.getCellWidth() + "-bit cells, but the heap has "
+                    + heap.getCellWidth() + "-bit cells.", 0, 0);
+        }
+        int[] cells = snapshot.getCells();
+        heap.clear();
+        if (!heap.ensureCapacity(Math.max(cells.length - 1, snapshot.getCursor()))) {
+            throw new ParsingException("Snapshot doesn't fit within the heap limit of " + heap.getMaxBytes() + " bytes.", 0, 0);
+        }
+        for (int i = 0; i < cells.length; i ++) {
+            if (cells[i] != 0) {
+                heap.set(i, cells[i]);
+            }
+        }
+        cursor = snapshot.getCursor();
+        stack.clear();
+        for (char value : snapshot.getStack()) {
+            if (!stack.push(value)) {
+                throw new ParsingException("Stack is full, the maximum depth is " + stack.getMaxDepth() + ".", this);
+            }
+        }
+        pc = snapshot.getPc();
+
+        String fileName = snapshot.getFileName();
+        if (fileName != null) {
+            openFile(fileName);
+            file.seekInput(snapshot.getFilePosition());
+        }
+        if (snapshot.getInput() == Snapshot.STREAM_FILE && file != null) {
+            input = fileInput;
+        }
+        if (snapshot.getOutput() == Snapshot.STREAM_FILE && file != null) {
+            setOutput(fileOutput);
+        }
+        if (snapshot.getServerPort() >= 0) {
+            startServer(new InetSocketAddress("localhost", snapshot.getServerPort()));
+        }
+    }
+
+    /**
+     * Loads the initial image of the program, if it has one and the heap
+     * and cursor haven't been touched yet.
+     *
+     * @return The instruction to start at
+     */
+    private int loadImage() {
+        int[] image = program.getImage();
+        if (image == null || cursor != 0) {
+            return 0;
+        }
+        for (int i = Math.min(image.length, heap.length()) - 1; i >= 0; i --) {
+            if (heap.get(i) != 0) {
+                return 0;
+            }
+        }
+        if (!heap.ensureCapacity(image.length - 1)) {
+            // Run the instructions instead, so the heap limit is reported where it is exceeded.
+            return 0;
+        }
+        for (int i = 0; i < image.length; i ++) {
+            if (image[i] != 0) {
+                heap.set(i, image[i]);
+            }
+        }
+        cursor = program.getStartCursor();
+        return program.getStart();
+    }
+
+    /**
+     * Starts a program that is run a slice at a time with {@link #resume(long)}.
+     * Instead of blocking on I/O, the program is parked until {@link #awaitIo()}
+     * has waited for it.
+     */
+    void begin(Program program) throws ParsingException {
+        this.program = program;
+        this.pc = loadImage();
+        this.blocking = false;
+        setOutput(consoleOutput());
+        input = consoleInput();
+    }
+
+    /**
+     * Interprets the program started by {@link #begin(Program)}, until it
+     * ends, uses up its budget or is parked.
+     *
+     * <p>The budget counts loop iterations rather than instructions. Every
+     * other instruction runs at most once between two iterations, so this
+     * still bounds the work done, and it only costs the interpreter a
+     * counter on each loop.</p>
+     *
+     * @param budget The maximum number of loop iterations to run
+     * @return {@link #FINISHED}, {@link #YIELDED} or {@link #PARKED}
+     * @throws ParsingException If the program fails
+     */
+    int resume(long budget) throws ParsingException {
+        iterations = getIterations();
+        iterationLimit = iterations + budget;
+        arm();
+        try {
+            interpret(pc, program.size());
+            if (pc < program.size()) {
+                return YIELDED;
+            }
+        } catch (Parked e) {
+            return PARKED;
+        } catch (ServerStopped e) {
+            pc = program.size();
+        } catch (ParsingException e) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+                // The program already failed.
+            }
+            throw e;
+        } finally {
+            iterations = getIterations();
+            iterationLimit = Long.MAX_VALUE;
+            arm();
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+        }
+        return FINISHED;
+    }
+
+    /**
+     * Waits for the I/O that parked the program, on the calling thread.
+     *
+     * @throws IOException If reading fails
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void awaitIo() throws IOException, InterruptedException {
+        IoWait waiting = this.waiting;
+        this.waiting = null;
+        if (waiting != null) {
+            waiting.await();
+        }
+    }
+
+    private void park(IoWait wait) {
+        this.waiting = wait;
+        throw new Parked();
+    }
+
+    private void interpret(int from, int to) throws ParsingException {
+        byte[] code = program.getCode();
+        int[] operands = program.getOperands();
+        int[] operands2 = program.getOperands2();
+        for (pc = from; pc < to; pc ++) {
+            switch (code[pc]) {
+                case Opcode.LOOP_START:
+                    if (heap.get(cursor) == 0) {
+                        pc = operands[pc];
+                    }
+                    break;
+                case Opcode.LOOP_END:
+                    if (heap.get(cursor) != 0) {
+                        pc = operands[pc];
+                        if (-- countdown == 0 && checkpoint()) {
+                            // Stops before the next iteration.
+                            to = pc + 1;
+                        }
+                    }
+                    break;
+                case Opcode.ADD:
+                    heap.add(cursor, operands[pc]);
+                    break;
+                case Opcode.MOVE:
+                    cursor += operands[pc];
+                    if (cursor < 0) {
+                        throw cursorUnderflow(pc, cursor);
+                    }
+                    if (cursor >= heap.length()) {
+                        expandHeap(cursor);
+                    }
+                    break;
+                case Opcode.CLEAR:
+                    heap.set(cursor, 0);
+                    break;
+                case Opcode.SCAN:
+                    while (heap.get(cursor) != 0) {
+                        cursor += operands[pc];
+                        if (cursor < 0) {
+                            throw cursorUnderflow(pc, cursor);
+                        }
+                        if (cursor >= heap.length()) {
+                            expandHeap(cursor);
+                        }
+                    }
+                    break;
+                case Opcode.MUL:
+                    int target = cursor + operands[pc];
+                    if (target >= heap.length()) {
+                        expandHeap(target);
+                    }
+                    heap.add(target, heap.get(cursor) * operands2[pc]);
+                    break;
+                case Opcode.MUL_GUARD:
+                    if (cursor + operands2[pc] < 0) {
+                        pc = operands[pc] - 1;
+                    }
+                    break;
+                case Opcode.JUMP:
+                    pc = operands[pc] - 1;
+                    break;
+                case Opcode.HEAP_GUARD:
+                    if (cursor + operands2[pc] >= heap.length()) {
+                        pc = operands[pc] - 1;
+                    }
+                    break;
+                case Opcode.MOVE_UNCHECKED:
+                    cursor += operands[pc];
+                    break;
+                default:
+                    parseChar(code[pc]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs every time the countdown of loop iterations reaches zero, to
+     * check the request deadline and the iteration limit. Keeping both
+     * behind a single counter keeps the loop in the interpreter cheap.
+     *
+     * @return True if the iteration limit has been reached
+     */
+    private boolean checkpoint() throws ParsingException {
+        iterations += period;
+        arm();
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new ParsingException("Request timed out.", this);
+        }
+        return iterations >= iterationLimit;
+    }
+
+    /**
+     * Sets the countdown to the next checkpoint.
+     */
+    private void arm() {
+        long period = Math.max(1, Math.min(Integer.MAX_VALUE, iterationLimit - iterations));
+        if (deadline != 0) {
+            period = Math.min(period, 1024);
+        }
+        this.period = (int) period;
+        this.countdown = this.period;
+    }
+
+    /**
+     * Interprets the program while recording statistics in the profiler.
+     *
+     * <p>Jumps are handled here, and every other instruction is handed to
+     * the plain interpreter one at a time, which keeps the plain interpreter
+     * free of any profiling overhead.</p>
+     */
+    private void interpretProfiled() throws ParsingException {
+        Profiler profiler = this.profiler;
+        byte[] code = program.getCode();
+        int[] operands = program.getOperands();
+        int[] operands2 = program.getOperands2();
+        profiler.begin(program);
+        long start = System.nanoTime();
+        try {
+            pc = 0;
+            while (pc < code.length) {
+                int current = pc;
+                profiler.count(code[current]);
+                switch (code[current]) {
+                    case Opcode.LOOP_START:
+                        if (heap.get(cursor) == 0) {
+                            profiler.skipLoop(current);
+                            pc = operands[current] + 1;
+                        } else {
+                            profiler.enterLoop(current);
+                            pc = current + 1;
+                        }
+                        break;
+                    case Opcode.LOOP_END:
+                        if (heap.get(cursor) != 0) {
+                            profiler.repeatLoop(operands[current]);
+                            pc = operands[current] + 1;
+                        } else {
+                            profiler.exitLoop(operands[current]);
+                            pc = current + 1;
+                        }
+                        break;
+                    case Opcode.MUL_GUARD:
+                    case Opcode.HEAP_GUARD:
+                        interpret(current, current + 1);
+                        if (pc != current + 1) {
+                            // Guards directly follow the start of the loop they bail out of.
+                            int loopStart = current - 1;
+                            while (code[loopStart] != Opcode.LOOP_START) {
+                                loopStart --;
+                            }
+                            profiler.exitLoop(loopStart);
+                        }
+                        break;
+                    case Opcode.MUL:
+                        interpret(current, current + 1);
+                        profiler.useCell(cursor + operands[current]);
+                        break;
+                    case Opcode.PUSH:
+                        interpret(current, current + 1);
+                        profiler.useStack(stack.size());
+                        break;
+                    default:
+                        interpret(current, current + 1);
+                        break;
+                }
+                profiler.useCell(cursor);
+            }
+        } finally {
+            profiler.addTime(System.nanoTime() - start);
+        }
+    }
+
+    private Profiler.Stream streamType(Object stream) {
+        if (stream == consoleOutput() || stream == consoleInput()) {
+            return Profiler.Stream.CONSOLE;
+        }
+        if (stream == fileOutput || stream == fileInput) {
+            return Profiler.Stream.FILE;
+        }
+        return Profiler.Stream.NETWORK;
+    }
+
+    private void parseChar(byte instruction) throws ParsingException {
+        switch(instruction) {
+            case Opcode.LEFT:
+                cursor --;
+                if (cursor < 0) {
+                    throw cursorUnderflow(pc, cursor);
+                }
+                break;
+            case Opcode.RIGHT:
+                cursor ++;
+                if (cursor >= heap.length()) {
+                    expandHeap(cursor);
+                }
+                break;
+            case Opcode.OUTPUT:
+                try {
+                    output.write(heap.get(cursor));
+                    if (profiler != null) {
+                        profiler.write(streamType(output.getTarget()));
+                    }
+                    if (debug) {
+                        System.err.println("Writing " + heap.get(cursor));
+                    }
+                } catch (IOException e) {
+                    throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+                }
+                break;
+            case Opcode.INPUT:
+                try {
+                    int value;
+                    if (consoleReadAhead || input != consoleInput()) {
+                        if (!inputs.isReady(input)) {
+                            // Anything written so far, such as a prompt, must be visible before blocking on input.
+                            output.flush();
+                            if (!blocking && inputs.available(input) <= 0) {
+                                InputStream input = this.input;
+                                park(() -> inputs.await(input));
+                            }
+                        }
+                        value = inputs.read(input);
+                    } else {
+                        output.flush();
+                        value = input.read();
+                    }
+                    if (profiler != null && value >= 0) {
+                        profiler.read(streamType(input));
+                    }
+                    // The end of every stream reads as 0.
+                    heap.set(cursor, value < 0 ? 0 : value);
+                } catch (IOException e) {
+                    throw new ParsingException("Failed to read from input: " + e.getMessage(), this);
+                }
+                break;
+            case Opcode.INCREMENT:
+                heap.add(cursor, 1);
+                break;
+            case Opcode.DECREMENT:
+                heap.add(cursor, -1);
+                break;
+            case Opcode.CONSOLE_OUTPUT:
+                setOutput(consoleOutput());
+                break;
+            case Opcode.CONSOLE_INPUT:
+                input = consoleInput();
+                break;
+            case Opcode.PUSH:
+                int pushed = heap.get(cursor);
+                if (pushed != (char) pushed) {
+                    throw new ParsingException("Cannot push " + pushed + ", the stack only holds values from 0 to "
+                            + (int) Character.MAX_VALUE + ".", this);
+                }
+                if (!stack.push((char) pushed)) {
+                    throw new ParsingException("Stack is full, the maximum depth is " + stack.getMaxDepth() + ".", this);
+                }
+                break;
+            case Opcode.POP:
+                if (stack.isEmpty()) {
+                    throw new ParsingException("Cannot drop from an empty stack.", this);
+                }
+                heap.set(cursor, stack.pop());
+                break;
+            case Opcode.SERVER_START:
+                StringBuilder port = new StringBuilder();
+                char read;
+                while ((read = (char) heap.get(cursor)) != 0) {
+                    cursor ++;
+                    port.append(read);
+                }
+                cursor ++;
+                if (server != null || concurrentServer != null) {
+                    throw new ParsingException("Webserver is already running.", this);
+                }
+                InetSocketAddress address;
+                try {
+                    address = new InetSocketAddress("localhost", Integer.parseInt(port.toString()));
+                } catch (IllegalArgumentException e) {
+                    throw new ParsingException("Invalid webserver port " + port + ".", this);
+                }
+                if (serverThreads > 0) {
+                    serveConcurrently(address);
+                    break;
+                }
+                startServer(address);
+                break;
+            case Opcode.NET_INPUT:
+                checkServer();
+                if (!networkStreamOpen) {
+                    acceptExchange();
+                }
+                input = netInput;
+                break;
+            case Opcode.NET_OUTPUT:
+                checkServer();
+                if (!networkStreamOpen) {
+                    acceptExchange();
+                }
+                setOutput(netOutput);
+                break;
+            case Opcode.NET_CLOSE:
+                boolean open = networkStreamOpen;
+                networkStreamOpen = false;
+                try {
+                    output.flush(netOutput);
+                    netOutput.close();
+                    inputs.discard(netInput);
+                    netInput.close();
+                    if (open) {
+                        metrics.completed(exchangeArrival);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    if (open) {
+                        metrics.failed();
+                    }
+                }
+                break;
+            case Opcode.SERVER_STOP:
+                if (concurrentServer != null) {
+                    concurrentServer.stop();
+                    break;
+                }
+                if (server == null) {
+                    throw new ParsingException("Webserver must be created before it can be shutdown.", this);
+                }
+                stopSingleServer();
+                break;
+            case Opcode.FILE_OPEN:
+                StringBuilder filename = new StringBuilder();
+                while ((read = (char) heap.get(cursor)) != 0) {
+                    cursor ++;
+                    filename.append(read);
+                }
+                cursor ++;
+                openFile(filename.toString());
+                break;
+            case Opcode.FILE_OUTPUT:
+                if (file == null) {
+                    throw new ParsingException("File must be loaded before setting stream.", this);
+                }
+                setOutput(fileOutput);
+                break;
+            case Opcode.FILE_INPUT:
+                if (file == null) {
+                    throw new ParsingException("File must be loaded before setting stream.", this);
+                }
+                input = fileInput;
+                break;
+            case Opcode.FILE_CLEAR:
+                if (file == null) {
+                    throw new ParsingException("File must be loaded before clearing.", this);
+                }
+
+                try {
+                    output.flush(fileOutput);
+                    inputs.discard(fileInput);
+                    file.clear();
+                } catch (IOException e) {
+                    throw new ParsingException("Failed to clear file. " + e.getMessage(), this);
+                }
+                break;
+            case Opcode.FILE_CLOSE:
+                if (file == null) {
+                    throw new ParsingException("File must be loaded before clearing.", this);
+                }
+
+                try {
+                    output.flush(fileOutput);
+                    inputs.discard(fileInput);
+                    file.close();
+                } catch (IOException e) {
+                    throw new ParsingException("Failed to close file. " + e.getMessage(), this);
+                } finally {
+                    file = null;
+                    fileName = null;
+                }
+                break;
+            case Opcode.DUMP:
+                if (snapshotFile != null) {
+                    writeSnapshot();
+                } else {
+                    printLine(formatHeap(dumpFrom, dumpTo));
+                }
+                break;
+        }
+    }
+
+    private void openFile(String name) throws ParsingException {
+        try {
+            file = new ChannelFile(Paths.get(name), mapFiles);
+        } catch (IOException | InvalidPathException e) {
+            throw new ParsingException("Failed to access file. " + e.getMessage(), this);
+        }
+        fileName = name;
+        inputs.discard(fileInput);
+        fileOutput = file.getOutput();
+        fileInput = file.getInput();
+    }
+
+    private void startServer(InetSocketAddress address) throws ParsingException {
+        try {
+            BlockingQueue<PendingExchange> exchanges = new LinkedBlockingQueue<>();
+            ServerMetrics metrics = new ServerMetrics(() -> heap.length());
+            HttpServer server = HttpSupport.createServer(address);
+            printLine(server.getAddress().toString());
+            server.createContext("/", httpExchange -> exchanges.add(new PendingExchange(httpExchange, metrics.arrived())));
+            if (metricsEndpoint) {
+                server.createContext(ServerMetrics.PATH, metrics::handle);
+            }
+            server.setExecutor(null);
+            server.start();
+            metrics.register(server.getAddress().getPort());
+            pendingExchanges = exchanges;
+            this.metrics = metrics;
+            this.server = server;
+        } catch (IOException e) {
+            throw new ParsingException("Failed to create webserver. " + e.getMessage(), this);
+        }
+    }
+
+    /**
+     * Writes a snapshot that continues after the current instruction.
+     */
+    private void writeSnapshot() throws ParsingException {
+        if (networkStreamOpen) {
+            throw new ParsingException("Network stream must be closed before taking a snapshot.", this);
+        }
+        byte inputStream = snapshotStream(input == consoleInput(), file != null && input == fileInput);
+        byte outputStream = snapshotStream(output.getTarget() == consoleOutput(),
+                file != null && output.getTarget() == fileOutput);
+        HttpServer server = this.server;
+        Snapshot snapshot = new Snapshot(program, pc + 1, cursor, heap, stack, fileName,
+                fileInputPosition(), server == null ? -1 : server.getAddress().getPort(),
+                inputStream, outputStream);
+        try {
+            // Everything written before the snapshot must not be written again on resume.
+            output.flush();
+            snapshot.write(snapshotFile);
+        } catch (IOException e) {
+            throw new ParsingException("Failed to write snapshot. " + e.getMessage(), this);
+        }
+    }
+
+    /**
+     * Gets the position in the open file of the next byte the program reads.
+     *
+     * @return The position in bytes, or 0 without an open file
+     */
+    private long fileInputPosition() {
+        return file == null ? 0 : file.getInputPosition() - inputs.buffered(fileInput);
+    }
+
+    private byte snapshotStream(boolean console, boolean file) throws ParsingException {
+        if (console) {
+            return Snapshot.STREAM_CONSOLE;
+        }
+        if (file) {
+            return Snapshot.STREAM_FILE;
+        }
+        throw new ParsingException("Snapshots can only be taken while the input and output are the console or an open file.", this);
+    }
+
+    /**
+     * Waits for the next request and makes it the network stream.
+     */
+    private void acceptExchange() throws ParsingException {
+        if (pendingExchanges == null) {
+            throw new ParsingException("Network stream is closed.", this);
+        }
+        PendingExchange next;
+        if (exchangeWaited) {
+            next = prefetchedExchange;
+            exchangeWaited = false;
+            prefetchedExchange = null;
+        } else if (!blocking) {
+            next = pendingExchanges.poll();
+            if (next == null) {
+                park(this::waitForExchange);
+            }
+        } else {
+            try {
+                next = nextExchange();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ParsingException("Interrupted while waiting for a connection.", this);
+            }
+        }
+        if (next == null) {
+            throw new ParsingException("Timed out waiting for a connection.", this);
+        }
+        if (next.exchange == null) {
+            throw new ServerStopped();
+        }
+        HttpExchange httpExchange = next.exchange;
+        InputStream newInput = HttpSupport.requestInput(httpExchange);
+        inputs.discard(netInput);
+        if (netInput == input) {
+            input = newInput;
+        }
+        netInput = newInput;
+        OutputStream newOutput = httpExchange.getResponseBody();
+        if (netOutput == output.getTarget()) {
+            setOutput(newOutput);
+        }
+        netOutput = newOutput;
+        exchangeArrival = next.arrival;
+        metrics.opened();
+        try {
+            HttpSupport.sendHeaders(httpExchange, heap.get(cursor), chunkedResponses);
+        } catch (IOException e) {
+            metrics.failed();
+            throw new ParsingException("Failed to respond to request. " + e.getMessage(), this);
+        }
+        networkStreamOpen = true;
+    }
+
+    private PendingExchange nextExchange() throws InterruptedException {
+        if (connectionTimeout > 0) {
+            return pendingExchanges.poll(connectionTimeout, TimeUnit.MILLISECONDS);
+        }
+        return pendingExchanges.take();
+    }
+
+    private void waitForExchange() throws InterruptedException {
+        prefetchedExchange = nextExchange();
+        exchangeWaited = true;
+    }
+
+    private InputStream consoleInput() {
+        return consoleInput == null ? System.in : consoleInput;
+    }
+
+    private OutputStream consoleOutput() {
+        return consoleOutput == null ? System.out : consoleOutput;
+    }
+
+    private void printLine(String line) throws ParsingException {
+        OutputStream consoleOutput = consoleOutput();
+        try {
+            output.flush(consoleOutput);
+            consoleOutput.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            consoleOutput.flush();
+        } catch (IOException e) {
+            throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+        }
+    }
+
+    private void checkServer() throws ParsingException {
+        if (server == null && concurrentServer == null) {
+            if (serverStopped) {
+                // Stopped by stopServer() while the program was between two requests.
+                throw new ServerStopped();
+            }
+            throw new ParsingException("Webserver must be created before setting stream.", this);
+        }
+    }
+
+    private void stopSingleServer() {
+        HttpServer server = this.server;
+        if (server == null) {
+            return;
+        }
+        this.server = null;
+        List<PendingExchange> unanswered = new ArrayList<>();
+        pendingExchanges.drainTo(unanswered);
+        for (PendingExchange pending : unanswered) {
+            if (pending.exchange != null) {
+                pending.exchange.close();
+                metrics.dropped();
+            }
+        }
+        server.stop(2);
+        metrics.unregister();
+        pendingExchanges.add(PendingExchange.STOPPED);
+    }
+
+    private void serveConcurrently(InetSocketAddress address) throws ParsingException {
+        int handlerStart = pc + 1;
+        int handlerEnd = findHandlerEnd(handlerStart);
+        if (handlerEnd < 0) {
+            throw new ParsingException("Concurrent webserver needs a '%' to end the request handler.", this);
+        }
+        try {
+            // Requests read the file on their own, so they must see everything written to it so far.
+            output.flush(fileOutput);
+        } catch (IOException e) {
+            throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+        }
+        ServerMetrics metrics = new ServerMetrics(() -> heap.length());
+        this.metrics = metrics;
+        try {
+            concurrentServer = new ConcurrentServer(address, serverThreads, metrics, metricsEndpoint,
+                    (httpExchange, arrival) -> new Machine(this).handleRequest(httpExchange, arrival, handlerStart, handlerEnd + 1));
+        } catch (IOException e) {
+            throw new ParsingException("Failed to create webserver. " + e.getMessage(), this);
+        }
+        printLine(concurrentServer.getAddress().toString());
+        if (!blocking) {
+            ConcurrentServer concurrentServer = this.concurrentServer;
+            park(() -> {
+                concurrentServer.awaitStop();
+                pc = handlerEnd + 1;
+            });
+        }
+        try {
+            concurrentServer.awaitStop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            concurrentServer.stop();
+            throw new ParsingException("Interrupted while serving requests.", this);
+        }
+        pc = handlerEnd;
+    }
+
+    /**
+     * Finds the '%' that ends the request handler starting at the given instruction.
+     *
+     * @return The index of the '%', or -1 if there is none in the same loop
+     */
+    private int findHandlerEnd(int start) {
+        byte[] code = program.getCode();
+        int depth = 0;
+        for (int i = start; i < code.length; i ++) {
+            if (code[i] == Opcode.LOOP_START) {
+                depth ++;
+            } else if (code[i] == Opcode.LOOP_END) {
+                if (-- depth < 0) {
+                    return -1;
+                }
+            } else if (code[i] == Opcode.NET_CLOSE && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void handleRequest(HttpExchange httpExchange, long arrival, int from, int to) {
+        String failure = null;
+        RequestTimeout timeout = null;
+        try {
+            if (requestTimeout > 0) {
+                timeout = new RequestTimeout(requestTimeout);
+            }
+            ChannelFile shared = file;
+            file = null;
+            if (shared != null) {
+                file = shared.openReadOnly(sharedFilePosition);
+                fileOutput = file.getOutput();
+                fileInput = file.getInput();
+            }
+            setOutput(consoleOutput());
+            input = consoleInput();
+            netInput = HttpSupport.requestInput(httpExchange);
+            netOutput = httpExchange.getResponseBody();
+            exchangeArrival = arrival;
+            networkStreamOpen = true;
+            metrics.opened();
+            HttpSupport.sendHeaders(httpExchange, heap.get(cursor), chunkedResponses);
+            if (requestTimeout > 0) {
+                deadline = System.nanoTime() + requestTimeout * 1000000L;
+                arm();
+            }
+            interpret(from, to);
+            output.flush();
+        } catch (ParsingException | IOException e) {
+            failure = e.getMessage();
+        } finally {
+            if (timeout != null && timeout.cancel() && failure != null) {
+                // Blocked I/O fails with whatever the interrupt left behind.
+                failure = "Request timed out.";
+            }
+            if (failure != null) {
+                System.err.println("Failed to handle request: " + failure);
+            }
+            if (networkStreamOpen) {
+                // The handler failed or timed out before its '%'.
+                metrics.failed();
+            }
+            httpExchange.close();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // The file is discarded either way.
+                }
+            }
+        }
+    }
+
+    private void setOutput(OutputStream stream) throws ParsingException {
+        try {
+            output.setTarget(stream);
+        } catch (IOException e) {
+            throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
+        }
+    }
+
+    /**
+     * Executes a single instruction for compiled code.
+     *
+     * @param pc The instruction index
+     * @param cursor The current cursor
+     * @return The cursor after the instruction
+     * @throws ParsingException If the instruction fails
+     */
+    int invoke(int pc, int cursor) throws ParsingException {
+        this.pc = pc;
+        this.cursor = cursor;
+        parseChar(program.getCode()[pc]);
+        if (this.pc != pc) {
+            // Compiled code always continues with the next instruction, so
+            // hand the rest of the program to the interpreter.
+            throw new Jumped();
+        }
+        return this.cursor;
+    }
+
+    /**
+     * Grows the heap for compiled code.
+     *
+     * @param pc The instruction index
+     * @param cursor The current cursor
+     * @param index The index the heap must include
+     * @throws ParsingException If the heap limit is exceeded
+     */
+    void expandHeap(int pc, int cursor, int index) throws ParsingException {
+        this.pc = pc;
+        this.cursor = cursor;
+        expandHeap(index);
+    }
+
+    void finish(int cursor) {
+        this.cursor = cursor;
+        this.pc = program.size();
+    }
+
+    ParsingException cursorUnderflow(int pc, int cursor) {
+        this.pc = pc;
+        int column = program.getColumn(pc);
+        if (program.getCode()[pc] == Opcode.MOVE) {
+            // Runs of '<' are folded from adjacent columns, so report the one that underflowed.
+            column += cursor - program.getOperands()[pc];
+        }
+        this.cursor = -1;
+        return new ParsingException("Cursor pointing to negative heapspace.", getLineNum(), column);
+    }
+
+    private void expandHeap(int index) throws ParsingException {
+        if (heap.ensureCapacity(index)) {
+            return;
+        }
+        int column = getColumnNum();
+        if (program.getCode()[pc] == Opcode.MOVE) {
+            // Runs of '>' are folded from adjacent columns, so fail at the first
+            // one past the limit, after growing the heap as far as it goes.
+            int from = index - program.getOperands()[pc];
+            int failed = from + 1;
+            while (failed < index && heap.ensureCapacity(failed)) {
+                failed = Math.min(heap.length(), index);
+            }
+            column += failed - from - 1;
+            cursor = failed;
+        }
+        throw new ParsingException("Heap limit of " + heap.getMaxBytes() + " bytes exceeded.", getLineNum(), column);
+    }
+
+    /**
+     * Returns this machine to its initial state, as if it was newly created
+     * with the same settings. Open files are closed and a running webserver
+     * is stopped.
+     */
+    public void reset() {
+        stopServer();
+        serverStopped = false;
+        server = null;
+        concurrentServer = null;
+        pendingExchanges = null;
+        metrics = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // The file is discarded either way.
+            }
+            file = null;
+        }
+        fileName = null;
+        fileOutput = null;
+        fileInput = null;
+        netOutput = null;
+        netInput = null;
+        networkStreamOpen = false;
+        input = null;
+        inputs.clear();
+        output.discard();
+        heap.clear();
+        stack.clear();
+        cursor = 0;
+        pc = 0;
+        deadline = 0;
+        iterations = 0;
+        iterationLimit = Long.MAX_VALUE;
+        arm();
+        blocking = true;
+        waiting = null;
+        exchangeWaited = false;
+        prefetchedExchange = null;
+        program = null;
+    }
+
+    String formatHeap() {
+        if (heap.getCellWidth() == 16) {
+            return Arrays.toString(heap.toCharArray());
+        }
+        return Arrays.toString(heap.toIntArray());
+    }
+
+    /**
+     * Formats a range of the heap the same way as {@link #formatHeap()},
+     * without copying the rest of it.
+     */
+    private String formatHeap(int from, int to) {
+        to = Math.min(to, heap.length());
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = from; i < to; i ++) {
+            if (i > from) {
+                builder.append(", ");
+            }
+            if (heap.getCellWidth() == 16) {
+                builder.append((char) heap.get(i));
+            } else {
+                builder.append(heap.get(i));
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * An exchange waiting for the program to accept it, and when it arrived.
+     */
+    private static final class PendingExchange {
+
+        /**
+         * Tells the program the server has stopped.
+         */
+        static final PendingExchange STOPPED = new PendingExchange(null, 0);
+
+        final HttpExchange exchange;
+        final long arrival;
+
+        PendingExchange(HttpExchange exchange, long arrival) {
+            this.exchange = exchange;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * Interrupts the thread handling a request once it runs past its
+     * timeout. Loops notice the deadline on their own, but a request
+     * blocked reading or writing its exchange only stops once the
+     * interrupt closes the connection.
+     */
+    private static final class RequestTimeout implements Runnable {
+
+        private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "wutlang-request-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            timer.setRemoveOnCancelPolicy(true);
+        }
+
+        private final Thread thread = Thread.currentThread();
+        private final ScheduledFuture<?> future;
+        private boolean finished;
+        private boolean expired;
+
+        RequestTimeout(long timeout) {
+            this.future = timer.schedule(this, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!finished) {
+                expired = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Stops the timeout, clearing the interrupt if it already expired,
+         * so a pooled thread doesn't carry it into the next request.
+         *
+         * @return True if the timeout expired
+         */
+        boolean cancel() {
+            future.cancel(false);
+            boolean expired;
+            synchronized (this) {
+                finished = true;
+                expired = this.expired;
+            }
+            if (expired) {
+                Thread.interrupted();
+            }
+            return expired;
+        }
+    }
+
+    /**
+     * Something a parked program waits for.
+     */
+    private interface IoWait {
+
+        void await() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Returns from {@link #resume(long)} when the program would block.
+     */
+    private static final class Parked extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Parked() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Ends the program when the webserver is stopped while it waits for a request.
+     */
+    private static final class ServerStopped extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ServerStopped() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Leaves compiled code when an instruction run for it moves the program
+     * counter, as a concurrent webserver does to skip its request handler.
+     */
+    private static final class Jumped extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Jumped() {
+            super(null, null, false, false);
+        }
+    }
+}
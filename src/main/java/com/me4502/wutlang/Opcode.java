@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+/**
+ * Instruction set of a compiled {@link Program}.
+ */
+final class Opcode {
+
+    static final byte LEFT = 0;
+    static final byte RIGHT = 1;
+    static final byte OUTPUT = 2;
+    static final byte INPUT = 3;
+    static final byte INCREMENT = 4;
+    static final byte DECREMENT = 5;
+    static final byte CONSOLE_OUTPUT = 6;
+    static final byte CONSOLE_INPUT = 7;
+    static final byte PUSH = 8;
+    static final byte POP = 9;
+    static final byte LOOP_START = 10;
+    static final byte LOOP_END = 11;
+    static final byte SERVER_START = 12;
+    static final byte NET_INPUT = 13;
+    static final byte NET_OUTPUT = 14;
+    static final byte NET_CLOSE = 15;
+    static final byte SERVER_STOP = 16;
+    static final byte FILE_OPEN = 17;
+    static final byte FILE_OUTPUT = 18;
+    static final byte FILE_INPUT = 19;
+    static final byte FILE_CLEAR = 20;
+    static final byte FILE_CLOSE = 21;
+    static final byte DUMP = 22;
+
+    // Produced by the optimizer, see WutlangOptimizer.
+    /** Adds the operand to the current cell. */
+    static final byte ADD = 23;
+    /** Moves the cursor by the operand. */
+    static final byte MOVE = 24;
+    /** Sets the current cell to zero. */
+    static final byte CLEAR = 25;
+    /** Moves the cursor by the operand until a zero cell is found. */
+    static final byte SCAN = 26;
+    /** Adds the current cell times operand2 to the cell at the operand offset. */
+    static final byte MUL = 27;
+    /** Jumps to the operand if the cursor plus operand2 would be negative. */
+    static final byte MUL_GUARD = 28;
+    /** Jumps to the operand. */
+    static final byte JUMP = 29;
+    /** Jumps to the operand if the cursor plus operand2 is past the end of the heap. */
+    static final byte HEAP_GUARD = 30;
+    /** Moves the cursor by the operand, to a cell that a guard has already checked. */
+    static final byte MOVE_UNCHECKED = 31;
+
+    static final byte NONE = -1;
+
+    /** The number of opcodes. */
+    static final int COUNT = 32;
+
+    private static final String[] NAMES = {
+            "LEFT", "RIGHT", "OUTPUT", "INPUT", "INCREMENT", "DECREMENT", "CONSOLE_OUTPUT", "CONSOLE_INPUT",
+            "PUSH", "POP", "LOOP_START", "LOOP_END", "SERVER_START", "NET_INPUT", "NET_OUTPUT", "NET_CLOSE",
+            "SERVER_STOP", "FILE_OPEN", "FILE_OUTPUT", "FILE_INPUT", "FILE_CLEAR", "FILE_CLOSE", "DUMP",
+            "ADD", "MOVE", "CLEAR", "SCAN", "MUL", "MUL_GUARD", "JUMP", "HEAP_GUARD", "MOVE_UNCHECKED"
+    };
+
+    private Opcode() {
+    }
+
+    /**
+     * Gets the opcode for a source character.
+     *
+     * @param instruction The source character
+     * @return The opcode, or {@link #NONE} if the character is not an instruction
+     */
+    static byte fromChar(char instruction) {
+        switch (instruction) {
+            case '<': return LEFT;
+            case '>': return RIGHT;
+            case '.': return OUTPUT;
+            case ',': return INPUT;
+            case '+': return INCREMENT;
+            case '-': return DECREMENT;
+            case 'c': return CONSOLE_OUTPUT;
+            case 'r': return CONSOLE_INPUT;
+            case '^': return PUSH;
+            case 'V': return POP;
+            case '[': return LOOP_START;
+            case ']': return LOOP_END;
+            case '$': return SERVER_START;
+            case '@': return NET_INPUT;
+            case '!': return NET_OUTPUT;
+            case '%': return NET_CLOSE;
+            case '~': return SERVER_STOP;
+            case '&': return FILE_OPEN;
+            case 'o': return FILE_OUTPUT;
+            case 'i': return FILE_INPUT;
+            case 'p': return FILE_CLEAR;
+            case 'e': return FILE_CLOSE;
+            case ':': return DUMP;
+            default: return NONE;
+        }
+    }
+
+    /**
+     * Gets the name of an opcode.
+     *
+     * @param opcode The opcode
+     * @return The name
+     */
+    static String name(byte opcode) {
+        return NAMES[opcode];
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The current output of a program.
+ *
+ * <p>Written bytes are collected in a buffer that is reused for every
+ * stream, and only handed to the stream when it fills up, when the output
+ * is switched to another stream, or when it is flushed explicitly.</p>
+ *
+ * <p>With asynchronous output, the buffer is handed to an {@link AsyncWriter}
+ * instead, which writes it on its own thread. Switching streams and
+ * flushing still wait until everything before them has been written, so
+ * streams see their bytes in program order.</p>
+ */
+final class OutputChannel {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    private OutputStream target;
+
+    private int asyncCapacity;
+    private AsyncWriter writer;
+
+    /**
+     * Sets whether bytes are written on a background thread. Takes effect
+     * the next time the buffer is handed on.
+     *
+     * @param capacity The size of the buffer of the background thread, or 0 to write on the calling thread
+     */
+    void setAsync(int capacity) {
+        this.asyncCapacity = capacity;
+    }
+
+    /**
+     * Gets the stream that bytes are currently written to.
+     *
+     * @return The stream
+     */
+    OutputStream getTarget() {
+        return target;
+    }
+
+    /**
+     * Switches to another stream, flushing anything written to the current one.
+     *
+     * @param target The new stream
+     * @throws IOException If flushing the current stream fails
+     */
+    void setTarget(OutputStream target) throws IOException {
+        if (this.target != target) {
+            flush();
+            this.target = target;
+            if (writer != null) {
+                writer.setTarget(target);
+            }
+        }
+    }
+
+    void write(int value) throws IOException {
+        if (writer != null) {
+            // Fails the write right after the background thread failed, rather than a buffer later.
+            writer.checkFailure();
+        }
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count ++] = (byte) value;
+    }
+
+    boolean hasPending() {
+        return count > 0;
+    }
+
+    /**
+     * Writes all pending bytes to the current stream and flushes it.
+     *
+     * @throws IOException If writing fails
+     */
+    void flush() throws IOException {
+        if (count > 0) {
+            drain();
+            if (writer == null) {
+                target.flush();
+            }
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Flushes the current stream and stops the background thread, if any.
+     * A later write starts a new one.
+     *
+     * @throws IOException If writing fails
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            stopWriter();
+        }
+    }
+
+    /**
+     * Flushes pending bytes if they are destined for the given stream.
+     *
+     * @param stream The stream
+     * @throws IOException If writing fails
+     */
+    void flush(OutputStream stream) throws IOException {
+        if (target == stream) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops any pending bytes and the current stream, without writing anything.
+     */
+    void discard() {
+        count = 0;
+        target = null;
+        try {
+            stopWriter();
+        } catch (IOException ignored) {
+            // Nothing is written anymore.
+        }
+    }
+
+    private void stopWriter() throws IOException {
+        AsyncWriter writer = this.writer;
+        this.writer = null;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        try {
+            if (writer == null && asyncCapacity > 0) {
+                writer = new AsyncWriter(asyncCapacity);
+                writer.setTarget(target);
+            }
+            if (writer != null) {
+                writer.write(buffer, 0, count);
+            } else {
+                target.write(buffer, 0, count);
+            }
+        } finally {
+            count = 0;
+        }
+    }
+}
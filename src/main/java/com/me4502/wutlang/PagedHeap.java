@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A heap split into fixed size pages, which are only allocated once written to.
+ *
+ * <p>Growing the heap never copies cells, only the table of pages. Pages
+ * can be allocated outside of the Java heap, and cells can be 8, 16 or 32
+ * bits wide.</p>
+ */
+public final class PagedHeap implements Heap {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_CELLS = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_CELLS - 1;
+
+    private final int cellWidth;
+    private final int cellBytes;
+    private final boolean direct;
+    private final long maxBytes;
+    private final long maxCells;
+    private final int initialSize;
+
+    private ByteBuffer[] pages;
+    private int length;
+
+    /**
+     * Creates a heap.
+     *
+     * @param cellWidth The width of a cell in bits, either 8, 16 or 32
+     * @param initialSize The initial length
+     * @param maxBytes The size limit, in bytes
+     * @param direct Whether to allocate pages outside of the Java heap
+     */
+    public PagedHeap(int cellWidth, int initialSize, long maxBytes, boolean direct) {
+        if (cellWidth != 8 && cellWidth != 16 && cellWidth != 32) {
+            throw new IllegalArgumentException("Cell width must be 8, 16 or 32 bits.");
+        }
+        this.cellWidth = cellWidth;
+        this.cellBytes = cellWidth / 8;
+        this.direct = direct;
+        this.maxBytes = maxBytes;
+        this.maxCells = Math.min(maxBytes / cellBytes, Integer.MAX_VALUE - 8);
+        if (initialSize < 1 || initialSize > maxCells) {
+            throw new IllegalArgumentException("Initial size must be at least 1 and within the size limit.");
+        }
+        this.initialSize = initialSize;
+        this.length = initialSize;
+        this.pages = new ByteBuffer[((initialSize - 1) >>> PAGE_SHIFT) + 1];
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public int get(int index) {
+        int pageIndex = index >>> PAGE_SHIFT;
+        if (pageIndex >= pages.length) {
+            return 0;
+        }
+        ByteBuffer page = pages[pageIndex];
+        if (page == null) {
+            return 0;
+        }
+        int offset = (index & PAGE_MASK) * cellBytes;
+        switch (cellBytes) {
+            case 1:
+                return page.get(offset) & 0xFF;
+            case 2:
+                return page.getChar(offset);
+            default:
+                return page.getInt(offset);
+        }
+    }
+
+    @Override
+    public void set(int index, int value) {
+        ByteBuffer page = page(index);
+        int offset = (index & PAGE_MASK) * cellBytes;
+        switch (cellBytes) {
+            case 1:
+                page.put(offset, (byte) value);
+                break;
+            case 2:
+                page.putChar(offset, (char) value);
+                break;
+            default:
+                page.putInt(offset, value);
+                break;
+        }
+    }
+
+    @Override
+    public void add(int index, int delta) {
+        set(index, get(index) + delta);
+    }
+
+    private ByteBuffer page(int index) {
+        int pageIndex = index >>> PAGE_SHIFT;
+        ByteBuffer page = pages[pageIndex];
+        if (page == null) {
+            int size = PAGE_CELLS * cellBytes;
+            page = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            page.order(ByteOrder.nativeOrder());
+            pages[pageIndex] = page;
+        }
+        return page;
+    }
+
+    @Override
+    public boolean ensureCapacity(int index) {
+        if (index < length) {
+            return true;
+        }
+        if (index >= maxCells) {
+            return false;
+        }
+        long newLength = length;
+        while (newLength <= index) {
+            newLength <<= 1;
+        }
+        length = (int) Math.min(newLength, maxCells);
+        int pageCount = ((length - 1) >>> PAGE_SHIFT) + 1;
+        if (pageCount > pages.length) {
+            pages = Arrays.copyOf(pages, pageCount);
+        }
+        return true;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void clear() {
+        length = initialSize;
+        pages = new ByteBuffer[((initialSize - 1) >>> PAGE_SHIFT) + 1];
+    }
+
+    @Override
+    public Heap copy() {
+        PagedHeap copy = new PagedHeap(cellWidth, initialSize, maxBytes, direct);
+        copy.length = length;
+        copy.pages = new ByteBuffer[pages.length];
+        for (int i = 0; i < pages.length; i ++) {
+            if (pages[i] != null) {
+                ByteBuffer page = copy.page(i << PAGE_SHIFT);
+                page.put(pages[i].duplicate());
+                page.clear();
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public char[] toCharArray() {
+        char[] copy = new char[length];
+        for (int i = 0; i < length; i ++) {
+            copy[i] = (char) get(i);
+        }
+        return copy;
+    }
+
+    @Override
+    public int[] toIntArray() {
+        int[] copy = new int[length];
+        for (int i = 0; i < length; i ++) {
+            copy[i] = get(i);
+        }
+        return copy;
+    }
+}
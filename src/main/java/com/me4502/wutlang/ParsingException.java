@@ -24,6 +24,14 @@ package com.me4502.wutlang;
 public class ParsingException extends Exception {
 
     public ParsingException(String message, WutlangParser parser) {
-        super(message + " [" + (parser.getLineNum() + 1) + ":" + (parser.getColumnNum() + 1) + "]");
+        this(message, parser.getLineNum(), parser.getColumnNum());
+    }
+
+    public ParsingException(String message, Machine machine) {
+        this(message, machine.getLineNum(), machine.getColumnNum());
+    }
+
+    public ParsingException(String message, int lineNum, int columnNum) {
+        super(message + " [" + (lineNum + 1) + ":" + (columnNum + 1) + "]");
     }
 }
\ No newline at end of file
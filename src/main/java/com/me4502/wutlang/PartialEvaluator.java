@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Runs the start of a program while it is compiled, for as long as it
+ * only works on the heap, and stores the heap and cursor it ends with as
+ * the initial image of the program.
+ *
+ * <p>Evaluation stops before the first instruction that does I/O or uses
+ * the stack, and is then cut back to the last instruction outside of any
+ * loop, so runs resume from a point every engine can start at. Cells are
+ * kept between 0 and 255, which every cell width stores the same way, so
+ * the image suits any heap.</p>
+ */
+final class PartialEvaluator {
+
+    /** The most instructions run while compiling a program. */
+    static final int MAX_STEPS = 1 << 20;
+    /** The most cells in an initial image. */
+    static final int MAX_CELLS = 4096;
+
+    private final byte[] code;
+    private final int[] operands;
+    private final int[] operands2;
+    private final BitSet boundaries = new BitSet();
+
+    private int[] cells;
+    private int cursor;
+    private int maxIndex;
+    private int steps;
+
+    private PartialEvaluator(Program program) {
+        this.code = program.getCode();
+        this.operands = program.getOperands();
+        this.operands2 = program.getOperands2();
+        for (int pc = 0; pc < code.length; pc = extent(pc)) {
+            boundaries.set(pc);
+        }
+    }
+
+    /**
+     * Evaluates the start of a program.
+     *
+     * @param program The optimized program
+     * @return The program with an initial image, or the same program if none of it could be evaluated
+     */
+    static Program evaluate(Program program) {
+        PartialEvaluator evaluator = new PartialEvaluator(program);
+        int start = evaluator.run(program.size());
+        if (start == 0) {
+            return program;
+        }
+        // Evaluation is deterministic, so running again up to the cut leaves exactly the state it had there.
+        evaluator.run(start);
+        int[] image = Arrays.copyOf(evaluator.cells, evaluator.maxIndex + 1);
+        return new Program(program.getCode(), program.getOperands(), program.getOperands2(), program.getPositions(),
+                start, evaluator.cursor, image);
+    }
+
+    /**
+     * Gets the end of the item starting at pc, the same way the JIT splits
+     * a program. Loops that are followed by an unoptimized fallback copy are
+     * a single item together with it.
+     */
+    private int extent(int pc) {
+        if (code[pc] != Opcode.LOOP_START) {
+            return pc + 1;
+        }
+        int end = operands[pc] + 1;
+        for (int i = pc; i < end; i ++) {
+            if ((code[i] == Opcode.JUMP || code[i] == Opcode.MUL_GUARD || code[i] == Opcode.HEAP_GUARD) && operands[i] > end) {
+                end = operands[i];
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Runs the program from the beginning on an empty heap.
+     *
+     * @param to The instruction to stop at, which must be outside of any loop
+     * @return The last instruction outside of any loop that was reached
+     */
+    private int run(int to) {
+        cells = new int[MAX_CELLS];
+        cursor = 0;
+        maxIndex = 0;
+        steps = 0;
+        int last = 0;
+        for (int pc = 0; pc < to; pc ++) {
+            if (boundaries.get(pc)) {
+                last = pc;
+            }
+            if (++ steps > MAX_STEPS) {
+                return last;
+            }
+            switch (code[pc]) {
+                case Opcode.LOOP_START:
+                    if (cells[cursor] == 0) {
+                        pc = operands[pc];
+                    }
+                    break;
+                case Opcode.LOOP_END:
+                    if (cells[cursor] != 0) {
+                        pc = operands[pc];
+                    }
+                    break;
+                case Opcode.INCREMENT:
+                    if (!set(cursor, cells[cursor] + 1)) {
+                        return last;
+                    }
+                    break;
+                case Opcode.DECREMENT:
+                    if (!set(cursor, cells[cursor] - 1)) {
+                        return last;
+                    }
+                    break;
+                case Opcode.ADD:
+                    if (!set(cursor, cells[cursor] + (long) operands[pc])) {
+                        return last;
+                    }
+                    break;
+                case Opcode.LEFT:
+                    if (!move(-1)) {
+                        return last;
+                    }
+                    break;
+                case Opcode.RIGHT:
+                    if (!move(1)) {
+                        return last;
+                    }
+                    break;
+                case Opcode.MOVE:
+                case Opcode.MOVE_UNCHECKED:
+                    if (!move(operands[pc])) {
+                        return last;
+                    }
+                    break;
+                case Opcode.CLEAR:
+                    cells[cursor] = 0;
+                    break;
+                case Opcode.SCAN:
+                    while (cells[cursor] != 0) {
+                        if (!move(operands[pc]) || ++ steps > MAX_STEPS) {
+                            return last;
+                        }
+                    }
+                    break;
+                case Opcode.MUL:
+                    long target = (long) cursor + operands[pc];
+                    if (target < 0 || target >= MAX_CELLS
+                            || !set((int) target, cells[(int) target] + (long) cells[cursor] * operands2[pc])) {
+                        return last;
+                    }
+                    break;
+                case Opcode.MUL_GUARD:
+                    if (cursor + operands2[pc] < 0) {
+                        pc = operands[pc] - 1;
+                    }
+                    break;
+                case Opcode.HEAP_GUARD:
+                    if ((long) cursor + operands2[pc] >= MAX_CELLS) {
+                        return last;
+                    }
+                    break;
+                case Opcode.JUMP:
+                    pc = operands[pc] - 1;
+                    break;
+                default:
+                    // I/O and the stack are left for when the program runs.
+                    return last;
+            }
+        }
+        return to;
+    }
+
+    private boolean set(int index, long value) {
+        if (value < 0 || value > 255) {
+            return false;
+        }
+        cells[index] = (int) value;
+        maxIndex = Math.max(maxIndex, index);
+        return true;
+    }
+
+    private boolean move(int delta) {
+        long next = (long) cursor + delta;
+        if (next < 0 || next >= MAX_CELLS) {
+            // An underflow is left to fail when the program runs.
+            return false;
+        }
+        cursor = (int) next;
+        maxIndex = Math.max(maxIndex, cursor);
+        return true;
+    }
+}
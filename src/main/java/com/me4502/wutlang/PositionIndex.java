@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The source line and column of every instruction in a {@link Program},
+ * stored in a little over one byte per instruction.
+ *
+ * <p>Lines are stored once per run of instructions on the same line.
+ * Columns are stored as a byte each, either the column itself for the
+ * first instruction on a line or the distance from the previous
+ * instruction. Columns that don't fit are kept separately, and the full
+ * column of every {@value #BLOCK_SIZE}th instruction is kept so a lookup
+ * never decodes more than a block.</p>
+ */
+final class PositionIndex {
+
+    private static final int BLOCK_SHIFT = 5;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int OVERFLOW = 0xFF;
+
+    private int size;
+    private byte[] columns;
+    private int[] blockColumns;
+
+    private int lineCount;
+    private int[] lineStarts;
+    private int[] lineNumbers;
+
+    private int overflowCount;
+    private int[] overflowPcs;
+    private int[] overflowColumns;
+
+    private int lastLine;
+    private int lastColumn;
+
+    PositionIndex() {
+        this.columns = new byte[64];
+        this.blockColumns = new int[4];
+        this.lineStarts = new int[8];
+        this.lineNumbers = new int[8];
+        this.overflowPcs = new int[8];
+        this.overflowColumns = new int[8];
+    }
+
+    private PositionIndex(PositionIndex index) {
+        this.size = index.size;
+        this.columns = Arrays.copyOf(index.columns, index.size);
+        this.blockColumns = Arrays.copyOf(index.blockColumns, blockCount(index.size));
+        this.lineCount = index.lineCount;
+        this.lineStarts = Arrays.copyOf(index.lineStarts, index.lineCount);
+        this.lineNumbers = Arrays.copyOf(index.lineNumbers, index.lineCount);
+        this.overflowCount = index.overflowCount;
+        this.overflowPcs = Arrays.copyOf(index.overflowPcs, index.overflowCount);
+        this.overflowColumns = Arrays.copyOf(index.overflowColumns, index.overflowCount);
+        this.lastLine = index.lastLine;
+        this.lastColumn = index.lastColumn;
+    }
+
+    private static int blockCount(int size) {
+        return (size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds the position of the next instruction.
+     *
+     * @param line The zero-based line
+     * @param column The zero-based column
+     */
+    void add(int line, int column) {
+        int pc = size;
+        if (pc == columns.length) {
+            columns = Arrays.copyOf(columns, pc << 1);
+        }
+        if ((pc & (BLOCK_SIZE - 1)) == 0) {
+            int block = pc >>> BLOCK_SHIFT;
+            if (block == blockColumns.length) {
+                blockColumns = Arrays.copyOf(blockColumns, block << 1);
+            }
+            blockColumns[block] = column;
+        }
+        boolean lineStart = pc == 0 || line != lastLine;
+        if (lineStart) {
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount << 1);
+                lineNumbers = Arrays.copyOf(lineNumbers, lineCount << 1);
+            }
+            lineStarts[lineCount] = pc;
+            lineNumbers[lineCount ++] = line;
+        }
+        int value = lineStart ? column : column - lastColumn;
+        if (value < 0 || value >= OVERFLOW) {
+            if (overflowCount == overflowPcs.length) {
+                overflowPcs = Arrays.copyOf(overflowPcs, overflowCount << 1);
+                overflowColumns = Arrays.copyOf(overflowColumns, overflowCount << 1);
+            }
+            overflowPcs[overflowCount] = pc;
+            overflowColumns[overflowCount ++] = column;
+            value = OVERFLOW;
+        }
+        columns[pc] = (byte) value;
+        lastLine = line;
+        lastColumn = column;
+        size ++;
+    }
+
+    /**
+     * Creates a copy of this index without any spare capacity.
+     *
+     * @return The copy
+     */
+    PositionIndex compact() {
+        return new PositionIndex(this);
+    }
+
+    private int lineRun(int pc) {
+        int run = Arrays.binarySearch(lineStarts, 0, lineCount, pc);
+        return run >= 0 ? run : -run - 2;
+    }
+
+    int getLine(int pc) {
+        return lineNumbers[lineRun(pc)];
+    }
+
+    int getColumn(int pc) {
+        int current = pc & ~(BLOCK_SIZE - 1);
+        int column = blockColumns[current >>> BLOCK_SHIFT];
+        if (current == pc) {
+            return column;
+        }
+        int run = lineRun(current);
+        int nextLine = run + 1 < lineCount ? lineStarts[run + 1] : Integer.MAX_VALUE;
+        while (current < pc) {
+            current ++;
+            int value = columns[current] & 0xFF;
+            if (value == OVERFLOW) {
+                column = overflowColumns[Arrays.binarySearch(overflowPcs, 0, overflowCount, current)];
+            } else if (current == nextLine) {
+                column = value;
+            } else {
+                column += value;
+            }
+            if (current == nextLine) {
+                run ++;
+                nextLine = run + 1 < lineCount ? lineStarts[run + 1] : Integer.MAX_VALUE;
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Gets the number of bytes {@link #write(ByteBuffer)} writes.
+     *
+     * @return The length in bytes
+     */
+    int byteSize() {
+        return 3 * 4 + size + blockCount(size) * 4 + lineCount * 8 + overflowCount * 8;
+    }
+
+    void write(ByteBuffer buffer) {
+        buffer.putInt(size).putInt(lineCount).putInt(overflowCount);
+        buffer.put(columns, 0, size);
+        for (int i = 0; i < blockCount(size); i ++) {
+            buffer.putInt(blockColumns[i]);
+        }
+        for (int i = 0; i < lineCount; i ++) {
+            buffer.putInt(lineStarts[i]).putInt(lineNumbers[i]);
+        }
+        for (int i = 0; i < overflowCount; i ++) {
+            buffer.putInt(overflowPcs[i]).putInt(overflowColumns[i]);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(ByteBuffer)}.
+     *
+     * @param buffer The buffer
+     * @return The index, or null if the buffer doesn't hold a valid index
+     */
+    static PositionIndex read(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        int lineCount = buffer.getInt();
+        int overflowCount = buffer.getInt();
+        if (size < 0 || lineCount < 0 || lineCount > size || overflowCount < 0 || overflowCount > size
+                || (size > 0) != (lineCount > 0)
+                || buffer.remaining() < size + blockCount(size) * 4L + lineCount * 8L + overflowCount * 8L) {
+            return null;
+        }
+        PositionIndex index = new PositionIndex();
+        index.size = size;
+        index.columns = new byte[size];
+        buffer.get(index.columns);
+        index.blockColumns = new int[blockCount(size)];
+        for (int i = 0; i < index.blockColumns.length; i ++) {
+            index.blockColumns[i] = buffer.getInt();
+        }
+        index.lineCount = lineCount;
+        index.lineStarts = new int[lineCount];
+        index.lineNumbers = new int[lineCount];
+        for (int i = 0; i < lineCount; i ++) {
+            index.lineStarts[i] = buffer.getInt();
+            index.lineNumbers[i] = buffer.getInt();
+        }
+        index.overflowCount = overflowCount;
+        index.overflowPcs = new int[overflowCount];
+        index.overflowColumns = new int[overflowCount];
+        for (int i = 0; i < overflowCount; i ++) {
+            index.overflowPcs[i] = buffer.getInt();
+            index.overflowColumns[i] = buffer.getInt();
+        }
+        return index;
+    }
+}
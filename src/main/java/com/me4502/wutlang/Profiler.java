@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects statistics about where a program spends its time.
+ *
+ * <p>A profiler is attached with {@link Machine#setProfiler(Profiler)}.
+ * Profiled programs always run on the interpreter. Loops replaced by the
+ * optimizer count as a single iteration, so use optimization level 0 for
+ * exact iteration counts.</p>
+ */
+public final class Profiler {
+
+    /**
+     * The kinds of stream that bytes are counted for.
+     */
+    public enum Stream {
+        CONSOLE,
+        FILE,
+        NETWORK
+    }
+
+    private static final int HOT_LOOPS = 20;
+
+    private final long[] opcodeCounts = new long[Opcode.COUNT];
+    private final long[] bytesRead = new long[Stream.values().length];
+    private final long[] bytesWritten = new long[Stream.values().length];
+
+    private Program program;
+    private long[] loopEntries = new long[0];
+    private long[] loopIterations = new long[0];
+    private long[] loopNanos = new long[0];
+    private long[] loopEntered = new long[0];
+
+    private int highestCell;
+    private int maxStackDepth;
+    private long nanos;
+
+    void begin(Program program) {
+        if (this.program != program) {
+            this.program = program;
+            loopEntries = new long[program.size()];
+            loopIterations = new long[program.size()];
+            loopNanos = new long[program.size()];
+            loopEntered = new long[program.size()];
+        }
+    }
+
+    void count(byte opcode) {
+        opcodeCounts[opcode] ++;
+    }
+
+    void enterLoop(int pc) {
+        loopEntries[pc] ++;
+        loopIterations[pc] ++;
+        loopEntered[pc] = System.nanoTime();
+    }
+
+    void skipLoop(int pc) {
+        loopEntries[pc] ++;
+    }
+
+    void repeatLoop(int pc) {
+        loopIterations[pc] ++;
+    }
+
+    void exitLoop(int pc) {
+        loopNanos[pc] += System.nanoTime() - loopEntered[pc];
+    }
+
+    void useCell(int index) {
+        if (index > highestCell) {
+            highestCell = index;
+        }
+    }
+
+    void useStack(int depth) {
+        if (depth > maxStackDepth) {
+            maxStackDepth = depth;
+        }
+    }
+
+    void read(Stream stream) {
+        bytesRead[stream.ordinal()] ++;
+    }
+
+    void write(Stream stream) {
+        bytesWritten[stream.ordinal()] ++;
+    }
+
+    void addTime(long nanos) {
+        this.nanos += nanos;
+    }
+
+    /**
+     * Gets the number of instructions executed.
+     *
+     * @return The number of instructions
+     */
+    public long getInstructions() {
+        long total = 0;
+        for (long count : opcodeCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Gets how often each kind of instruction was executed, including the
+     * instructions produced by the optimizer.
+     *
+     * @return The counts by instruction name, most executed first
+     */
+    public Map<String, Long> getInstructionCounts() {
+        List<Integer> opcodes = new ArrayList<>();
+        for (int opcode = 0; opcode < Opcode.COUNT; opcode ++) {
+            if (opcodeCounts[opcode] > 0) {
+                opcodes.add(opcode);
+            }
+        }
+        opcodes.sort((a, b) -> Long.compare(opcodeCounts[b], opcodeCounts[a]));
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int opcode : opcodes) {
+            counts.put(Opcode.name((byte) opcode), opcodeCounts[opcode]);
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the loops that ran, slowest first.
+     *
+     * <p>Loops that appear more than once in the compiled program, such as
+     * the fallback copies made by the optimizer, are combined by position.</p>
+     *
+     * @return The loops
+     */
+    public List<LoopProfile> getLoops() {
+        Map<Long, LoopProfile> loops = new LinkedHashMap<>();
+        for (int pc = 0; pc < loopEntries.length; pc ++) {
+            if (loopEntries[pc] == 0) {
+                continue;
+            }
+            long key = (long) program.getLine(pc) << 32 | program.getColumn(pc);
+            LoopProfile loop = loops.get(key);
+            if (loop == null) {
+                loop = new LoopProfile(program.getPosition(pc));
+                loops.put(key, loop);
+            }
+            loop.entries += loopEntries[pc];
+            loop.iterations += loopIterations[pc];
+            loop.nanos += loopNanos[pc];
+        }
+        List<LoopProfile> sorted = new ArrayList<>(loops.values());
+        sorted.sort((a, b) -> a.nanos != b.nanos ? Long.compare(b.nanos, a.nanos) : Long.compare(b.iterations, a.iterations));
+        return Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Gets the highest heap cell the cursor reached or the program wrote to.
+     *
+     * @return The cell index
+     */
+    public int getHighestCell() {
+        return highestCell;
+    }
+
+    /**
+     * Gets the largest number of values that were on the stack at once.
+     *
+     * @return The depth
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public long getBytesRead(Stream stream) {
+        return bytesRead[stream.ordinal()];
+    }
+
+    public long getBytesWritten(Stream stream) {
+        return bytesWritten[stream.ordinal()];
+    }
+
+    /**
+     * Gets the time spent running profiled programs.
+     *
+     * @return The time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Writes a summary, the instruction counts and the hottest loops.
+     *
+     * @param out The stream to write to
+     */
+    public void writeReport(PrintStream out) {
+        out.println(String.format(Locale.ROOT, "Profile: %d instructions in %.3f ms", getInstructions(), nanos / 1e6));
+        out.println("Highest cell: " + highestCell);
+        out.println("Deepest stack: " + maxStackDepth);
+        for (Stream stream : Stream.values()) {
+            out.println(String.format(Locale.ROOT, "%s: %d bytes read, %d bytes written",
+                    stream.name().charAt(0) + stream.name().substring(1).toLowerCase(Locale.ROOT),
+                    getBytesRead(stream), getBytesWritten(stream)));
+        }
+
+        out.println();
+        out.println("Instructions:");
+        for (Map.Entry<String, Long> entry : getInstructionCounts().entrySet()) {
+            out.println(String.format(Locale.ROOT, "    %-16s %14d", entry.getKey(), entry.getValue()));
+        }
+
+        List<LoopProfile> loops = getLoops();
+        out.println();
+        out.println("Hot loops, including the time of loops inside them:");
+        out.println(String.format(Locale.ROOT, "    %-12s %12s %7s %14s %12s", "Position", "Time (ms)", "Time", "Iterations", "Entries"));
+        for (LoopProfile loop : loops.subList(0, Math.min(HOT_LOOPS, loops.size()))) {
+            out.println(String.format(Locale.ROOT, "    %-12s %12.3f %6.1f%% %14d %12d",
+                    (loop.position.getLine() + 1) + ":" + (loop.position.getColumn() + 1), loop.nanos / 1e6,
+                    nanos == 0 ? 0 : loop.nanos * 100.0 / nanos, loop.iterations, loop.entries));
+        }
+        if (loops.size() > HOT_LOOPS) {
+            out.println("    ... " + (loops.size() - HOT_LOOPS) + " more");
+        }
+    }
+
+    /**
+     * The statistics of one loop in the source.
+     */
+    public static final class LoopProfile {
+
+        private final LinePos position;
+        private long entries;
+        private long iterations;
+        private long nanos;
+
+        private LoopProfile(LinePos position) {
+            this.position = position;
+        }
+
+        /**
+         * Gets the position of the '[' that starts the loop.
+         *
+         * @return The position
+         */
+        public LinePos getPosition() {
+            return position;
+        }
+
+        /**
+         * Gets how often the loop was reached, including when it was skipped.
+         *
+         * @return The number of entries
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Gets how often the body of the loop ran.
+         *
+         * @return The number of iterations
+         */
+        public long getIterations() {
+            return iterations;
+        }
+
+        /**
+         * Gets the time spent in the loop.
+         *
+         * @return The time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
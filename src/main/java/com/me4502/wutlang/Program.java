@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * A compiled Wutlang program.
+ *
+ * <p>Comments and whitespace are stripped, and every loop instruction
+ * carries the index of its matching bracket as an operand, so jumps
+ * happen in constant time.</p>
+ *
+ * <p>Programs are immutable, so one program can be run by any number of
+ * {@link Machine}s at once.</p>
+ */
+public final class Program {
+
+    private final byte[] code;
+    private final int[] operands;
+    private final int[] operands2;
+    private final PositionIndex positions;
+    private final int start;
+    private final int startCursor;
+    private final int[] image;
+
+    private final Object jitLock = new Object();
+    private Class<? extends JitProgram> jitClass;
+    private boolean jitCompiled;
+
+    Program(byte[] code, int[] operands, int[] operands2, PositionIndex positions) {
+        this(code, operands, operands2, positions, 0, 0, null);
+    }
+
+    Program(byte[] code, int[] operands, int[] operands2, PositionIndex positions, int start, int startCursor, int[] image) {
+        this.code = code;
+        this.operands = operands;
+        this.operands2 = operands2;
+        this.positions = positions;
+        this.start = start;
+        this.startCursor = startCursor;
+        this.image = image;
+    }
+
+    /**
+     * Compiles and optimizes a program.
+     *
+     * @param lines The source lines
+     * @param optimizationLevel The optimization level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     * @return The program
+     * @throws ParsingException If the source is invalid
+     */
+    public static Program compile(List<String> lines, int optimizationLevel) throws ParsingException {
+        return WutlangOptimizer.optimize(WutlangCompiler.compile(lines), optimizationLevel);
+    }
+
+    /**
+     * Compiles and optimizes a program, reading the source in a single pass.
+     *
+     * @param reader The source, which is read to the end but not closed
+     * @param optimizationLevel The optimization level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     * @return The program
+     * @throws IOException If the source can't be read
+     * @throws ParsingException If the source is invalid
+     * @see WutlangCompiler#compile(Reader)
+     */
+    public static Program compile(Reader reader, int optimizationLevel) throws IOException, ParsingException {
+        return WutlangOptimizer.optimize(WutlangCompiler.compile(reader), optimizationLevel);
+    }
+
+    /**
+     * Compiles and optimizes a program, reading UTF-8 source in a single pass.
+     *
+     * @param channel The source, which is read to the end but not closed
+     * @param optimizationLevel The optimization level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     * @return The program
+     * @throws IOException If the source can't be read or isn't valid UTF-8
+     * @throws ParsingException If the source is invalid
+     * @see WutlangCompiler#compile(ReadableByteChannel)
+     */
+    public static Program compile(ReadableByteChannel channel, int optimizationLevel) throws IOException, ParsingException {
+        return WutlangOptimizer.optimize(WutlangCompiler.compile(channel), optimizationLevel);
+    }
+
+    /**
+     * Gets the number of instructions in this program.
+     *
+     * @return The instruction count
+     */
+    public int size() {
+        return this.code.length;
+    }
+
+    byte[] getCode() {
+        return this.code;
+    }
+
+    int[] getOperands() {
+        return this.operands;
+    }
+
+    int[] getOperands2() {
+        return this.operands2;
+    }
+
+    PositionIndex getPositions() {
+        return this.positions;
+    }
+
+    /**
+     * Gets the instruction a run starts at when it starts from the initial
+     * image. The instructions before it only work on the heap, and produce
+     * the image.
+     *
+     * @return The instruction index, which is outside of any loop
+     * @see PartialEvaluator
+     */
+    int getStart() {
+        return this.start;
+    }
+
+    int getStartCursor() {
+        return this.startCursor;
+    }
+
+    /**
+     * Gets the heap at {@link #getStart()}, when run from an empty heap.
+     *
+     * @return The cells, or null if the program has no initial image
+     */
+    int[] getImage() {
+        return this.image;
+    }
+
+    /**
+     * Creates an instance of the JIT-compiled form of this program. The
+     * program is compiled once, on first use.
+     *
+     * @return The instance, or null if this program is too large for the JIT
+     */
+    JitProgram newJitProgram() {
+        Class<? extends JitProgram> compiled;
+        synchronized (jitLock) {
+            if (!jitCompiled) {
+                jitClass = JitCompiler.compileClass(this);
+                jitCompiled = true;
+            }
+            compiled = jitClass;
+        }
+        return compiled == null ? null : JitCompiler.newInstance(compiled);
+    }
+
+    /**
+     * Gets the source line of an instruction.
+     *
+     * @param pc The instruction index
+     * @return The zero-based line
+     */
+    public int getLine(int pc) {
+        if (code.length == 0) {
+            return 0;
+        }
+        return positions.getLine(Math.min(pc, code.length - 1));
+    }
+
+    /**
+     * Gets the source column of an instruction.
+     *
+     * @param pc The instruction index
+     * @return The zero-based column
+     */
+    public int getColumn(int pc) {
+        if (code.length == 0) {
+            return 0;
+        }
+        return positions.getColumn(Math.min(pc, code.length - 1));
+    }
+
+    /**
+     * Gets the source position of an instruction.
+     *
+     * @param pc The instruction index
+     * @return The position
+     */
+    public LinePos getPosition(int pc) {
+        return new LinePos(getLine(pc), getColumn(pc));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates instructions for a {@link Program}.
+ */
+final class ProgramBuilder {
+
+    private byte[] code = new byte[64];
+    private int[] operands = new int[64];
+    private int[] operands2 = new int[64];
+    private final PositionIndex positions = new PositionIndex();
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    int append(byte opcode, int operand, int operand2, int lineNum, int columnNum) {
+        if (size == code.length) {
+            int capacity = size << 1;
+            code = Arrays.copyOf(code, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            operands2 = Arrays.copyOf(operands2, capacity);
+        }
+        code[size] = opcode;
+        operands[size] = operand;
+        operands2[size] = operand2;
+        positions.add(lineNum, columnNum);
+        return size ++;
+    }
+
+    void setOperand(int pc, int operand) {
+        operands[pc] = operand;
+    }
+
+    int getLine(int pc) {
+        return positions.getLine(pc);
+    }
+
+    int getColumn(int pc) {
+        return positions.getColumn(pc);
+    }
+
+    Program build() {
+        return new Program(
+                Arrays.copyOf(code, size),
+                Arrays.copyOf(operands, size),
+                Arrays.copyOf(operands2, size),
+                positions.compact()
+        );
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Caches compiled programs, both in memory and as {@code .wutc} files.
+ *
+ * <p>Programs are keyed by a hash of their source, the optimization level
+ * and {@link WutlangCompiler#VERSION}, so an edited source file or a newer
+ * compiler never reuses a stale program. Files are memory-mapped when
+ * loaded. The least recently used programs are dropped from memory once
+ * their total size passes the limit.</p>
+ *
+ * <p>The cache is only an optimization. A missing, stale or damaged file
+ * is recompiled, and a file that can't be written is skipped.</p>
+ */
+public final class ProgramCache {
+
+    public static final String EXTENSION = ".wutc";
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final int MAGIC = 0x57555443;
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 4 + 4 + 4;
+    private static final int BYTES_PER_INSTRUCTION = 1 + 4 + 4;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    private final Map<String, Program> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory The directory to store files in, or null to store them next to the source
+     * @param maxBytes The approximate size limit of programs kept in memory
+     */
+    public ProgramCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Loads a program, compiling it only if it isn't cached.
+     *
+     * @param source The source file
+     * @param optimizationLevel The optimization level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     * @return The program
+     * @throws IOException If the source can't be read
+     * @throws ParsingException If the source is invalid
+     */
+    public Program load(Path source, int optimizationLevel) throws IOException, ParsingException {
+        byte[] hash = hash(source);
+        String key = toHex(hash) + '-' + optimizationLevel;
+
+        Program program = get(key);
+        if (program != null) {
+            return program;
+        }
+        Path file = directory == null ? siblingFile(source) : directory.resolve(key + EXTENSION);
+        program = read(file, hash, optimizationLevel);
+        if (program == null) {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                program = Program.compile(channel, optimizationLevel);
+            }
+            write(file, program, hash, optimizationLevel);
+        }
+        put(key, program);
+        return program;
+    }
+
+    private synchronized Program get(String key) {
+        return programs.get(key);
+    }
+
+    private synchronized void put(String key, Program program) {
+        long programSize = sizeOf(program);
+        if (programSize > maxBytes) {
+            return;
+        }
+        Program previous = programs.put(key, program);
+        if (previous != null) {
+            size -= sizeOf(previous);
+        }
+        size += programSize;
+        Iterator<Program> eldest = programs.values().iterator();
+        while (size > maxBytes) {
+            size -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(Program program) {
+        return HEADER_LENGTH + (long) program.size() * BYTES_PER_INSTRUCTION + program.getPositions().byteSize()
+                + imageSize(program);
+    }
+
+    private static int imageSize(Program program) {
+        int[] image = program.getImage();
+        return 4 + 4 + 4 + (image == null ? 0 : image.length * 4);
+    }
+
+    private static Path siblingFile(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(".wut")) {
+            name = name.substring(0, name.length() - ".wut".length());
+        }
+        return source.resolveSibling(name + EXTENSION);
+    }
+
+    private static Program read(Path file, byte[] hash, int optimizationLevel) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != WutlangCompiler.VERSION) {
+                return null;
+            }
+            byte[] fileHash = new byte[HASH_LENGTH];
+            buffer.get(fileHash);
+            if (!MessageDigest.isEqual(hash, fileHash) || buffer.getInt() != optimizationLevel) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (count < 0 || length < HEADER_LENGTH + (long) count * BYTES_PER_INSTRUCTION) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            int[] operands = new int[count];
+            int[] operands2 = new int[count];
+            byte[] code = new byte[count];
+            buffer.asIntBuffer().get(operands).get(operands2);
+            buffer.position(buffer.position() + count * 8);
+            buffer.get(code);
+            PositionIndex positions = PositionIndex.read(buffer);
+            if (positions == null || positions.size() != count || buffer.remaining() < 12) {
+                return null;
+            }
+            int start = buffer.getInt();
+            int startCursor = buffer.getInt();
+            int imageLength = buffer.getInt();
+            if (start < 0 || start > count || imageLength < -1 || buffer.remaining() != Math.max(imageLength, 0) * 4L) {
+                return null;
+            }
+            int[] image = null;
+            if (imageLength >= 0) {
+                image = new int[imageLength];
+                buffer.asIntBuffer().get(image);
+            }
+            return new Program(code, operands, operands2, positions, start, startCursor, image);
+        } catch (IOException e) {
+            // Usually because the program hasn't been cached yet.
+            return null;
+        }
+    }
+
+    private static void write(Path file, Program program, byte[] hash, int optimizationLevel) {
+        int count = program.size();
+        PositionIndex positions = program.getPositions();
+        int[] image = program.getImage();
+        ByteBuffer payload = ByteBuffer.allocate(count * BYTES_PER_INSTRUCTION + positions.byteSize() + imageSize(program));
+        payload.asIntBuffer().put(program.getOperands()).put(program.getOperands2());
+        payload.position(count * 8);
+        payload.put(program.getCode());
+        positions.write(payload);
+        payload.putInt(program.getStart()).putInt(program.getStartCursor()).putInt(image == null ? -1 : image.length);
+        if (image != null) {
+            for (int cell : image) {
+                payload.putInt(cell);
+            }
+        }
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(WutlangCompiler.VERSION).put(hash)
+                .putInt(optimizationLevel).putInt(count).putInt((int) crc.getValue());
+        header.flip();
+
+        Path temp = null;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            // Written to a temporary file first, so no one ever maps a half written file.
+            temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {header, payload};
+                while (payload.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        } catch (IOException e) {
+            // The program still runs, it just isn't cached.
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static byte[] hash(Path source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
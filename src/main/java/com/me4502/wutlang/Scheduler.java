@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many programs on a small pool of worker threads.
+ *
+ * <p>Every program runs as a {@link Session} on its own {@link Machine}, a
+ * quantum of loop iterations at a time, after which it goes to the back
+ * of the queue. A program that would block on input or on a webserver is
+ * parked on a separate I/O thread, so it doesn't hold up a worker, and
+ * rejoins the queue once its I/O is ready. The same {@link Program} can be
+ * run by any number of sessions at once.</p>
+ *
+ * <p>Scheduled programs always run on the interpreter.</p>
+ */
+public final class Scheduler implements AutoCloseable {
+
+    public static final long DEFAULT_QUANTUM = 10000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final ExecutorService workers;
+    private final ExecutorService io;
+    private final long quantum;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param workers The number of programs that run at once
+     * @param quantum The number of loop iterations a program runs before the next one gets a turn
+     */
+    public Scheduler(int workers, long quantum) {
+        if (workers < 1 || quantum < 1) {
+            throw new IllegalArgumentException("Workers and quantum must be at least 1.");
+        }
+        this.workers = Executors.newFixedThreadPool(workers, runnable -> newThread(runnable, "wutlang-worker-"));
+        this.io = Executors.newCachedThreadPool(runnable -> newThread(runnable, "wutlang-io-"));
+        this.quantum = quantum;
+    }
+
+    private static Thread newThread(Runnable runnable, String prefix) {
+        Thread thread = new Thread(runnable, prefix + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Starts running a program.
+     *
+     * @param program The program
+     * @param limits The limits the program must stay within
+     * @param input The console input of the program
+     * @param output The console output of the program
+     * @return The session running the program
+     */
+    public Session submit(Program program, Limits limits, InputStream input, OutputStream output) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed.");
+        }
+        Machine machine = new Machine();
+        machine.setConsole(input, output);
+        machine.setHeap(new ArrayHeap(1, limits.maxHeapBytes));
+        machine.setStackLimits(Math.min(CharStack.DEFAULT_CAPACITY, limits.maxStackDepth), limits.maxStackDepth);
+        Session session = new Session(program, machine, limits);
+        sessions.add(session);
+        try {
+            machine.begin(program);
+        } catch (ParsingException e) {
+            session.finish(State.FAILED, e);
+            return session;
+        }
+        session.schedule();
+        return session;
+    }
+
+    /**
+     * Gets every session that hasn't ended yet.
+     *
+     * @return The sessions
+     */
+    public List<Session> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    /**
+     * Cancels every session and stops the worker threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Session session : sessions) {
+            session.cancel();
+        }
+        workers.shutdown();
+        io.shutdownNow();
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        PARKED,
+        FINISHED,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * The limits a scheduled program must stay within. A program that
+     * exceeds them fails.
+     */
+    public static final class Limits {
+
+        public static final Limits NONE = new Limits(Long.MAX_VALUE, 0, Long.MAX_VALUE, CharStack.UNLIMITED);
+
+        private final long maxIterations;
+        private final long maxTime;
+        private final long maxHeapBytes;
+        private final int maxStackDepth;
+
+        /**
+         * Creates limits.
+         *
+         * @param maxIterations The maximum number of loop iterations
+         * @param maxTime The maximum time spent running, in milliseconds, or 0 for no limit
+         * @param maxHeapBytes The maximum size of the heap
+         * @param maxStackDepth The maximum number of values on the stack
+         */
+        public Limits(long maxIterations, long maxTime, long maxHeapBytes, int maxStackDepth) {
+            this.maxIterations = maxIterations;
+            this.maxTime = maxTime;
+            this.maxHeapBytes = maxHeapBytes;
+            this.maxStackDepth = maxStackDepth;
+        }
+
+        public long getMaxIterations() {
+            return maxIterations;
+        }
+
+        public long getMaxTime() {
+            return maxTime;
+        }
+
+        public long getMaxHeapBytes() {
+            return maxHeapBytes;
+        }
+
+        public int getMaxStackDepth() {
+            return maxStackDepth;
+        }
+    }
+
+    /**
+     * A program running on a scheduler.
+     *
+     * <p>The counters are updated after every slice, and can be read from
+     * any thread.</p>
+     */
+    public final class Session {
+
+        private final Program program;
+        private final Machine machine;
+        private final Limits limits;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile State state = State.QUEUED;
+        private volatile ParsingException failure;
+        private volatile boolean cancelled;
+        private volatile long iterations;
+        private volatile long runNanos;
+        private volatile long slices;
+        private volatile long parks;
+        private volatile long heapBytes;
+
+        private Future<?> ioWait;
+        private boolean waitingForIo;
+        private boolean finished;
+
+        private Session(Program program, Machine machine, Limits limits) {
+            this.program = program;
+            this.machine = machine;
+            this.limits = limits;
+        }
+
+        public Program getProgram() {
+            return program;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Gets the reason the program failed.
+         *
+         * @return The failure, or null if the program hasn't failed
+         */
+        public ParsingException getFailure() {
+            return failure;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+
+        /**
+         * Gets the time spent running the program, excluding the time it
+         * was queued or parked.
+         *
+         * @return The time in nanoseconds
+         */
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        public long getSlices() {
+            return slices;
+        }
+
+        /**
+         * Gets the number of times the program was parked waiting for I/O.
+         *
+         * @return The park count
+         */
+        public long getParks() {
+            return parks;
+        }
+
+        /**
+         * Gets the size of the heap after the last slice.
+         *
+         * @return The size in bytes
+         */
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the program to end.
+         *
+         * @param timeout The maximum time to wait, in milliseconds
+         * @return True if the program ended
+         * @throws InterruptedException If the thread is interrupted while waiting
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stops the program. A running program stops at the end of its
+         * slice, and a queued one once a worker picks it up. A parked one
+         * stops right away, but if it is stuck in a read that ignores
+         * interrupts, its machine is only reset once the read returns.
+         */
+        public void cancel() {
+            cancelled = true;
+            Future<?> ioWait;
+            synchronized (this) {
+                ioWait = this.ioWait;
+            }
+            if (ioWait != null && ioWait.cancel(true)) {
+                // The wait may be stuck in a read that ignores interrupts.
+                finish(State.CANCELLED, null);
+            }
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::runSlice);
+            } catch (RejectedExecutionException e) {
+                finish(State.CANCELLED, null);
+            }
+        }
+
+        private void runSlice() {
+            if (isDone()) {
+                return;
+            }
+            if (cancelled) {
+                finish(State.CANCELLED, null);
+                return;
+            }
+            state = State.RUNNING;
+            long budget = Math.min(quantum, limits.maxIterations - iterations + 1);
+            long start = System.nanoTime();
+            int result;
+            try {
+                result = machine.resume(budget);
+            } catch (ParsingException e) {
+                updateCounters(start);
+                finish(State.FAILED, e);
+                return;
+            }
+            updateCounters(start);
+            if (result == Machine.FINISHED) {
+                finish(State.FINISHED, null);
+            } else if (cancelled) {
+                finish(State.CANCELLED, null);
+            } else if (iterations > limits.maxIterations) {
+                finish(State.FAILED, new ParsingException("Iteration limit of " + limits.maxIterations + " exceeded.", machine));
+            } else if (limits.maxTime > 0 && runNanos > limits.maxTime * 1000000L) {
+                finish(State.FAILED, new ParsingException("Time limit of " + limits.maxTime + "ms exceeded.", machine));
+            } else if (result == Machine.PARKED) {
+                parks ++;
+                state = State.PARKED;
+                synchronized (this) {
+                    try {
+                        ioWait = io.submit(this::awaitIo);
+                    } catch (RejectedExecutionException e) {
+                        finish(State.CANCELLED, null);
+                    }
+                }
+            } else {
+                state = State.QUEUED;
+                schedule();
+            }
+        }
+
+        private void updateCounters(long start) {
+            runNanos += System.nanoTime() - start;
+            slices ++;
+            iterations = machine.getIterations();
+            heapBytes = (long) machine.heap().length() * machine.heap().getCellWidth() / 8;
+        }
+
+        private void awaitIo() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                waitingForIo = true;
+            }
+            State ended = null;
+            ParsingException failure = null;
+            try {
+                machine.awaitIo();
+            } catch (InterruptedException e) {
+                ended = State.CANCELLED;
+            } catch (IOException e) {
+                ended = State.FAILED;
+                failure = new ParsingException("Failed to read from input: " + e.getMessage(), machine);
+            }
+            boolean cancelledWhileWaiting;
+            synchronized (this) {
+                waitingForIo = false;
+                ioWait = null;
+                cancelledWhileWaiting = finished;
+            }
+            if (cancelledWhileWaiting) {
+                // Left for this thread, as the machine couldn't be reset while it was waiting.
+                machine.reset();
+            } else if (ended != null) {
+                finish(ended, failure);
+            } else {
+                state = State.QUEUED;
+                schedule();
+            }
+        }
+
+        private void finish(State state, ParsingException failure) {
+            boolean reset;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                this.failure = failure;
+                this.state = state;
+                ioWait = null;
+                reset = !waitingForIo;
+            }
+            if (reset) {
+                // Stops any webserver and closes any file the program left open.
+                machine.reset();
+            }
+            sessions.remove(this);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the requests handled by a webserver started by '$', and how long
+ * they took from arriving to being closed by '%'.
+ *
+ * <p>Latencies are counted in fixed buckets, one per power of two
+ * nanoseconds, so recording a request costs a few atomic increments and
+ * never allocates. Percentiles are accurate to within a factor of two.</p>
+ *
+ * <p>While the server runs, the metrics are registered as an MBean named
+ * {@code com.me4502.wutlang:type=Server,port=<port>}, and can also be
+ * served as text from {@link #PATH}.</p>
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    /**
+     * The path the metrics are served from, when enabled. Requests to it
+     * never reach the program.
+     */
+    public static final String PATH = "/__metrics";
+
+    private static final int BUCKETS = 40;
+
+    private final IntSupplier heapCells;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder openStreams = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder latencySum = new LongAdder();
+    private final AtomicLong latencyMax = new AtomicLong();
+
+    private ObjectName name;
+
+    /**
+     * Creates metrics for a server.
+     *
+     * @param heapCells Gets the length of the heap
+     */
+    ServerMetrics(IntSupplier heapCells) {
+        this.heapCells = heapCells;
+    }
+
+    /**
+     * Records the arrival of a request.
+     *
+     * @return The time it arrived, to pass to {@link #completed(long)}
+     */
+    long arrived() {
+        requests.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that a request became the network stream.
+     */
+    void opened() {
+        openStreams.increment();
+    }
+
+    /**
+     * Records that the response to an open request was completed.
+     *
+     * @param arrival The time the request arrived
+     */
+    void completed(long arrival) {
+        long latency = Math.max(System.nanoTime() - arrival, 0);
+        openStreams.decrement();
+        completed.increment();
+        buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(latency), BUCKETS - 1));
+        latencySum.add(latency);
+        long max = latencyMax.get();
+        while (latency > max && !latencyMax.compareAndSet(max, latency)) {
+            max = latencyMax.get();
+        }
+    }
+
+    /**
+     * Records that an open request failed.
+     */
+    void failed() {
+        openStreams.decrement();
+        errors.increment();
+    }
+
+    /**
+     * Records that a request was dropped before it was opened.
+     */
+    void dropped() {
+        errors.increment();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getOpenStreams() {
+        return openStreams.sum();
+    }
+
+    @Override
+    public long getHeapCells() {
+        return heapCells.getAsInt();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : latencySum.sum() / (double) count / 1e6;
+    }
+
+    @Override
+    public double getMedianLatencyMillis() {
+        return getLatencyPercentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+        return getLatencyPercentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return latencyMax.get() / 1e6;
+    }
+
+    /**
+     * Gets an upper bound of a latency percentile.
+     *
+     * @param percentile The percentile, from 0 to 1
+     * @return The latency in nanoseconds, or 0 if no request has completed
+     */
+    public long getLatencyPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i ++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i ++) {
+            count += buckets.get(i);
+            if (count >= rank && count > 0) {
+                return Math.min(1L << i, latencyMax.get());
+            }
+        }
+        return latencyMax.get();
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text format.
+     *
+     * @return The text
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder(2048);
+        append(builder, "counter", "wutlang_requests_total", "Requests that arrived.", getRequestCount());
+        append(builder, "counter", "wutlang_requests_completed_total", "Requests whose response was completed.", getCompletedCount());
+        append(builder, "counter", "wutlang_request_errors_total", "Requests that failed or were dropped.", getErrorCount());
+        append(builder, "gauge", "wutlang_open_streams", "Network streams that are open.", getOpenStreams());
+        append(builder, "gauge", "wutlang_heap_cells", "Cells in the heap.", getHeapCells());
+        builder.append("# HELP wutlang_request_latency_seconds Time from a request arriving to its response completing.\n");
+        builder.append("# TYPE wutlang_request_latency_seconds histogram\n");
+        long count = 0;
+        for (int i = 0; i < BUCKETS - 1; i ++) {
+            count += buckets.get(i);
+            builder.append("wutlang_request_latency_seconds_bucket{le=\"")
+                    .append(String.format(Locale.ROOT, "%.9g", (1L << i) / 1e9)).append("\"} ").append(count).append('\n');
+        }
+        count += buckets.get(BUCKETS - 1);
+        builder.append("wutlang_request_latency_seconds_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        builder.append("wutlang_request_latency_seconds_sum ")
+                .append(String.format(Locale.ROOT, "%.9f", latencySum.sum() / 1e9)).append('\n');
+        builder.append("wutlang_request_latency_seconds_count ").append(count).append('\n');
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, String type, String name, String help, long value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Serves the metrics as the response to an exchange.
+     *
+     * @param exchange The exchange
+     * @throws IOException If the response can't be sent
+     */
+    void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Registers these metrics as an MBean.
+     *
+     * @param port The port of the server
+     */
+    synchronized void register(int port) {
+        try {
+            ObjectName name = new ObjectName("com.me4502.wutlang:type=Server,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                // Left behind by a server on the same port that was never stopped.
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.name = name;
+        } catch (JMException e) {
+            // The metrics are still recorded, and served over HTTP if enabled.
+        }
+    }
+
+    /**
+     * Unregisters the MBean, if it was registered.
+     */
+    synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already unregistered.
+        }
+        name = null;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+/**
+ * The management interface of {@link ServerMetrics}.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * Gets the number of requests that have arrived.
+     *
+     * @return The count
+     */
+    long getRequestCount();
+
+    /**
+     * Gets the number of requests whose response was completed.
+     *
+     * @return The count
+     */
+    long getCompletedCount();
+
+    /**
+     * Gets the number of requests that failed, timed out, or were dropped
+     * when the server stopped.
+     *
+     * @return The count
+     */
+    long getErrorCount();
+
+    /**
+     * Gets the number of network streams that are open.
+     *
+     * @return The count
+     */
+    long getOpenStreams();
+
+    /**
+     * Gets the number of cells in the heap of the program that started the server.
+     *
+     * @return The heap length
+     */
+    long getHeapCells();
+
+    double getMeanLatencyMillis();
+
+    double getMedianLatencyMillis();
+
+    double getP99LatencyMillis();
+
+    double getMaxLatencyMillis();
+}
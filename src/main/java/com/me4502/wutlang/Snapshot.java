@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The state of a running program, which a {@link Machine} can resume from.
+ *
+ * <p>A snapshot holds the heap, cursor and stack, the instruction to
+ * continue at, and the name of the open file and port of the running
+ * webserver, which are opened again on resume. Loops need no state of
+ * their own, so a snapshot can be taken anywhere in a program. Snapshots
+ * are tied to the compiled program they were taken from, including its
+ * optimization level.</p>
+ *
+ * <p>Snapshots are written and read through memory-mapped files. Cells
+ * are stored at their own width, and zero cells at the end of the heap
+ * aren't stored at all.</p>
+ */
+public final class Snapshot {
+
+    public static final String EXTENSION = ".wuts";
+
+    static final byte STREAM_CONSOLE = 0;
+    static final byte STREAM_FILE = 1;
+
+    private static final int MAGIC = 0x57555453;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 * 10 + 8 + 4 + 1 + 1 + 4;
+
+    private final int programSize;
+    private final int programChecksum;
+    private final int pc;
+    private final int cursor;
+    private final int cellWidth;
+    private final int[] cells;
+    private final char[] stack;
+    private final String fileName;
+    private final long filePosition;
+    private final int serverPort;
+    private final byte input;
+    private final byte output;
+
+    Snapshot(Program program, int pc, int cursor, Heap heap, CharStack stack, String fileName, long filePosition,
+            int serverPort, byte input, byte output) {
+        this(program.size(), checksum(program), pc, cursor, heap.getCellWidth(), usedCells(heap),
+                stack.toCharArray(), fileName, filePosition, serverPort, input, output);
+    }
+
+    private Snapshot(int programSize, int programChecksum, int pc, int cursor, int cellWidth, int[] cells, char[] stack,
+            String fileName, long filePosition, int serverPort, byte input, byte output) {
+        this.programSize = programSize;
+        this.programChecksum = programChecksum;
+        this.pc = pc;
+        this.cursor = cursor;
+        this.cellWidth = cellWidth;
+        this.cells = cells;
+        this.stack = stack;
+        this.fileName = fileName;
+        this.filePosition = filePosition;
+        this.serverPort = serverPort;
+        this.input = input;
+        this.output = output;
+    }
+
+    private static int[] usedCells(Heap heap) {
+        int[] cells = heap.toIntArray();
+        int length = cells.length;
+        while (length > 0 && cells[length - 1] == 0) {
+            length --;
+        }
+        return length == cells.length ? cells : Arrays.copyOf(cells, length);
+    }
+
+    private static int checksum(Program program) {
+        ByteBuffer buffer = ByteBuffer.allocate(program.size() * 9);
+        buffer.asIntBuffer().put(program.getOperands()).put(program.getOperands2());
+        buffer.position(program.size() * 8);
+        buffer.put(program.getCode());
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks whether this snapshot was taken from a program.
+     *
+     * @param program The program
+     * @return True if the program can resume from this snapshot
+     */
+    public boolean matches(Program program) {
+        return program.size() == programSize && checksum(program) == programChecksum;
+    }
+
+    /**
+     * Gets the instruction the program continues at.
+     *
+     * @return The instruction index
+     */
+    public int getPc() {
+        return this.pc;
+    }
+
+    public int getCursor() {
+        return this.cursor;
+    }
+
+    public int getCellWidth() {
+        return this.cellWidth;
+    }
+
+    /**
+     * Gets the cells of the heap, up to the last one that isn't zero.
+     *
+     * @return The cells
+     */
+    int[] getCells() {
+        return this.cells;
+    }
+
+    char[] getStack() {
+        return this.stack;
+    }
+
+    /**
+     * Gets the name of the file that was open.
+     *
+     * @return The name, or null if no file was open
+     */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * Gets how far the open file had been read.
+     *
+     * @return The position in bytes
+     */
+    long getFilePosition() {
+        return this.filePosition;
+    }
+
+    /**
+     * Gets the port of the webserver that was running.
+     *
+     * @return The port, or -1 if no webserver was running
+     */
+    public int getServerPort() {
+        return this.serverPort;
+    }
+
+    byte getInput() {
+        return this.input;
+    }
+
+    byte getOutput() {
+        return this.output;
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file The file
+     * @return The snapshot
+     * @throws IOException If the file can't be read or isn't a snapshot
+     */
+    public static Snapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot.");
+            }
+            if (buffer.getInt() != VERSION) {
+                throw new IOException("Snapshot was written by a different version.");
+            }
+            int programSize = buffer.getInt();
+            int programChecksum = buffer.getInt();
+            int pc = buffer.getInt();
+            int cursor = buffer.getInt();
+            int cellWidth = buffer.getInt();
+            int cellCount = buffer.getInt();
+            int stackSize = buffer.getInt();
+            int nameLength = buffer.getInt();
+            long filePosition = buffer.getLong();
+            int serverPort = buffer.getInt();
+            byte input = buffer.get();
+            byte output = buffer.get();
+            int checksum = buffer.getInt();
+            if (pc < 0 || pc > programSize || cursor < 0 || cellWidth != 8 && cellWidth != 16 && cellWidth != 32
+                    || cellCount < 0 || stackSize < 0 || nameLength < -1 || filePosition < 0
+                    || length != HEADER_LENGTH + (long) cellCount * (cellWidth / 8) + stackSize * 2L + Math.max(nameLength, 0)) {
+                throw new IOException("Snapshot is damaged.");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Snapshot is damaged.");
+            }
+
+            int[] cells = new int[cellCount];
+            for (int i = 0; i < cellCount; i ++) {
+                switch (cellWidth) {
+                    case 8:
+                        cells[i] = buffer.get() & 0xFF;
+                        break;
+                    case 16:
+                        cells[i] = buffer.getChar();
+                        break;
+                    default:
+                        cells[i] = buffer.getInt();
+                        break;
+                }
+            }
+            char[] stack = new char[stackSize];
+            buffer.asCharBuffer().get(stack);
+            buffer.position(buffer.position() + stackSize * 2);
+            String fileName = null;
+            if (nameLength >= 0) {
+                byte[] name = new byte[nameLength];
+                buffer.get(name);
+                fileName = new String(name, StandardCharsets.UTF_8);
+            }
+            return new Snapshot(programSize, programChecksum, pc, cursor, cellWidth, cells, stack, fileName,
+                    filePosition, serverPort, input, output);
+        }
+    }
+
+    /**
+     * Writes this snapshot, replacing the file if it exists. The file is
+     * replaced in one step, so it always holds a complete snapshot.
+     *
+     * @param file The file
+     * @throws IOException If the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        byte[] name = fileName == null ? new byte[0] : fileName.getBytes(StandardCharsets.UTF_8);
+        long length = HEADER_LENGTH + (long) cells.length * (cellWidth / 8) + stack.length * 2L + name.length;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Heap is too large for a snapshot.");
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(programSize).putInt(programChecksum)
+                        .putInt(pc).putInt(cursor).putInt(cellWidth).putInt(cells.length).putInt(stack.length)
+                        .putInt(fileName == null ? -1 : name.length).putLong(filePosition).putInt(serverPort)
+                        .put(input).put(output);
+                int checksumPosition = buffer.position();
+                buffer.position(HEADER_LENGTH);
+                for (int cell : cells) {
+                    switch (cellWidth) {
+                        case 8:
+                            buffer.put((byte) cell);
+                            break;
+                        case 16:
+                            buffer.putChar((char) cell);
+                            break;
+                        default:
+                            buffer.putInt(cell);
+                            break;
+                    }
+                }
+                buffer.asCharBuffer().put(stack);
+                buffer.position(buffer.position() + stack.length * 2);
+                buffer.put(name);
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(HEADER_LENGTH);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                buffer.putInt(checksumPosition, (int) crc.getValue());
+                buffer.force();
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -21,9 +21,19 @@
  */
 package com.me4502.wutlang;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * **Wutlang version 1.1**
@@ -41,6 +51,7 @@ import java.util.Arrays;
  *          Default output is console.
  *  ',' - Set current heap cell to current input.
  *          Default input is console.
+ *          Sets the cell to 0 at the end of the input.
  *  '+' - Increases current heap point.
  *  '-' - Decreases current heap point.
  *  '[' - Open loop. Skips past ']' if 0 at heap.
@@ -55,10 +66,12 @@ import java.util.Arrays;
  *
  *  '$' - Open network connections on localhost at port specified as characters until 0
  *          After the 0, the length should be specified as a raw number.
+ *          A length of 0 sends the response in chunks until '%'.
  *          Cursor will be on length afterwards.
  *  '@' - Set network stream as input.
  *  '!' - Set network stream as output
  *          In format: IP METHOD URL BODY
+ *          Both wait for the next request if no stream is open.
  *  '%' - Close network stream.
  *  '~' - End server.
  *
@@ -84,20 +97,246 @@ import java.util.Arrays;
 public class Wutlang {
 
     public static void main(String[] args) {
-        WutlangParser parser = null;
+        // The command line owns the JVM, so it can change how every webserver in it behaves.
+        Machine.enableNoDelay();
+
+        String fileName = null;
+        int optimizationLevel = WutlangOptimizer.DEFAULT_LEVEL;
+        Engine engine = Engine.INTERPRETER;
+        boolean debug = false;
+        int stackLimit = CharStack.UNLIMITED;
+        String heapType = null;
+        int cellWidth = 16;
+        int heapSize = 1;
+        long heapLimit = Long.MAX_VALUE;
+        int serverThreads = 0;
+        long requestTimeout = 0;
+        long connectionTimeout = 0;
+        boolean chunkedResponses = false;
+        boolean metricsEndpoint = false;
+        boolean mapFiles = false;
+        int asyncOutput = 0;
+        String snapshotFile = null;
+        String resumeFile = null;
+        int dumpFrom = 0;
+        int dumpTo = Integer.MAX_VALUE;
+        boolean profile = false;
+        boolean cache = false;
+        String cacheDirectory = null;
+        boolean batch = false;
+        List<String> patterns = new ArrayList<>();
+        int batchThreads = Runtime.getRuntime().availableProcessors();
+        long timeLimit = 0;
+        String batchOutput = null;
+        String reportJson = null;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--opt=")) {
+                    optimizationLevel = (int) parseNumber(arg, "--opt=", 0, WutlangOptimizer.MAX_LEVEL, "Optimization level");
+                } else if (arg.startsWith("--engine=")) {
+                    try {
+                        engine = Engine.valueOf(arg.substring("--engine=".length()).toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Engine must be one of " + Arrays.toString(Engine.values()).toLowerCase(Locale.ROOT) + ".");
+                    }
+                } else if (arg.startsWith("--stack-limit=")) {
+                    stackLimit = (int) parseNumber(arg, "--stack-limit=", 0, CharStack.UNLIMITED, "Stack limit");
+                } else if (arg.startsWith("--heap=")) {
+                    heapType = arg.substring("--heap=".length());
+                    if (!heapType.equals("array") && !heapType.equals("paged") && !heapType.equals("direct")) {
+                        throw new IllegalArgumentException("Heap must be one of [array, paged, direct].");
+                    }
+                } else if (arg.startsWith("--cell-width=")) {
+                    cellWidth = (int) parseNumber(arg, "--cell-width=", 8, 32, "Cell width");
+                } else if (arg.startsWith("--heap-size=")) {
+                    heapSize = (int) parseNumber(arg, "--heap-size=", 1, Integer.MAX_VALUE - 8, "Initial heap size");
+                } else if (arg.startsWith("--heap-limit=")) {
+                    heapLimit = parseNumber(arg, "--heap-limit=", 1, Long.MAX_VALUE, "Heap limit");
+                } else if (arg.startsWith("--server-threads=")) {
+                    serverThreads = (int) parseNumber(arg, "--server-threads=", 0, 65536, "Server threads");
+                } else if (arg.startsWith("--request-timeout=")) {
+                    requestTimeout = parseNumber(arg, "--request-timeout=", 0, Long.MAX_VALUE / 1000000, "Request timeout");
+                } else if (arg.startsWith("--connection-timeout=")) {
+                    connectionTimeout = parseNumber(arg, "--connection-timeout=", 0, Long.MAX_VALUE, "Connection timeout");
+                } else if (arg.equals("--chunked-responses")) {
+                    chunkedResponses = true;
+                } else if (arg.equals("--metrics-endpoint")) {
+                    metricsEndpoint = true;
+                } else if (arg.equals("--map-files")) {
+                    mapFiles = true;
+                } else if (arg.startsWith("--async-output=")) {
+                    asyncOutput = (int) parseNumber(arg, "--async-output=", 0, 1 << 30, "Async output buffer");
+                } else if (arg.startsWith("--snapshot=")) {
+                    snapshotFile = arg.substring("--snapshot=".length());
+                } else if (arg.startsWith("--resume=")) {
+                    resumeFile = arg.substring("--resume=".length());
+                } else if (arg.startsWith("--dump-range=")) {
+                    int separator = arg.indexOf('-', "--dump-range=".length());
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Dump range must be two cells, separated by '-'.");
+                    }
+                    dumpFrom = (int) parseNumber(arg.substring(0, separator), "--dump-range=", 0, Integer.MAX_VALUE, "Dump range start");
+                    dumpTo = (int) parseNumber(arg.substring(separator), "-", dumpFrom, Integer.MAX_VALUE, "Dump range end");
+                } else if (arg.equals("--cache")) {
+                    cache = true;
+                } else if (arg.startsWith("--cache-dir=")) {
+                    cache = true;
+                    cacheDirectory = arg.substring("--cache-dir=".length());
+                } else if (arg.equals("--batch")) {
+                    batch = true;
+                } else if (arg.startsWith("--batch-threads=")) {
+                    batchThreads = (int) parseNumber(arg, "--batch-threads=", 1, 65536, "Batch threads");
+                } else if (arg.startsWith("--time-limit=")) {
+                    timeLimit = parseNumber(arg, "--time-limit=", 0, Long.MAX_VALUE / 1000000, "Time limit");
+                } else if (arg.startsWith("--batch-output=")) {
+                    batchOutput = arg.substring("--batch-output=".length());
+                } else if (arg.startsWith("--report-json=")) {
+                    reportJson = arg.substring("--report-json=".length());
+                } else if (arg.equals("--profile")) {
+                    profile = true;
+                } else if (arg.equals("--debug")) {
+                    debug = true;
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    fileName = arg;
+                    patterns.add(arg);
+                }
+            }
+            if (heapType == null) {
+                heapType = cellWidth == 16 ? "array" : "paged";
+            }
+            if (heapType.equals("array") && cellWidth != 16) {
+                throw new IllegalArgumentException("The array heap only supports 16-bit cells.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        if (batch && !patterns.isEmpty()) {
+            Scheduler.Limits limits = new Scheduler.Limits(Long.MAX_VALUE, timeLimit, heapLimit, stackLimit);
+            if (!runBatch(patterns, optimizationLevel, batchThreads, limits, batchOutput, reportJson)) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (fileName == null) {
+            System.out.println("Usage: wutlang [--opt=<0-" + WutlangOptimizer.MAX_LEVEL + ">] [--engine=<interpreter|jit>]"
+                    + " [--stack-limit=<depth>] [--heap=<array|paged|direct>] [--cell-width=<8|16|32>]"
+                    + " [--heap-size=<cells>] [--heap-limit=<bytes>] [--server-threads=<count>]"
+                    + " [--request-timeout=<ms>] [--connection-timeout=<ms>] [--chunked-responses]"
+                    + " [--metrics-endpoint] [--map-files]"
+                    + " [--async-output=<bytes>] [--snapshot=<file>] [--resume=<file>] [--dump-range=<from>-<to>] [--cache] [--cache-dir=<dir>] [--profile] [--debug] <file>");
+            System.out.println("       wutlang --batch [--batch-threads=<count>] [--time-limit=<ms>] [--batch-output=<dir>]"
+                    + " [--report-json=<file>] <file|dir|glob>...");
+            return;
+        }
+
+        Machine machine = new Machine();
         try {
-            String fileName = args[0];
-            parser = new WutlangParser(new File(fileName));
-            parser.parseProgram();
-        } catch (IOException e) {
+            machine.setEngine(engine);
+            machine.setDebug(debug);
+            machine.setStackLimits(CharStack.DEFAULT_CAPACITY, stackLimit);
+            machine.setServerMode(serverThreads, requestTimeout);
+            machine.setConnectionTimeout(connectionTimeout);
+            machine.setChunkedResponses(chunkedResponses);
+            machine.setMetricsEndpoint(metricsEndpoint);
+            machine.setMappedFiles(mapFiles);
+            machine.setAsyncOutput(asyncOutput);
+            machine.setDumpRange(dumpFrom, dumpTo);
+            if (snapshotFile != null) {
+                machine.setSnapshotFile(Paths.get(snapshotFile));
+            }
+            if (profile) {
+                machine.setProfiler(new Profiler());
+            }
+            if (heapType.equals("array")) {
+                machine.setHeap(new ArrayHeap(heapSize, heapLimit));
+            } else {
+                machine.setHeap(new PagedHeap(cellWidth, heapSize, heapLimit, heapType.equals("direct")));
+            }
+            Path file = Paths.get(fileName);
+            Program program;
+            if (cache) {
+                Path directory = cacheDirectory == null ? null : Paths.get(cacheDirectory);
+                program = new ProgramCache(directory, ProgramCache.DEFAULT_MAX_BYTES).load(file, optimizationLevel);
+            } else {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    program = Program.compile(channel, optimizationLevel);
+                }
+            }
+            if (resumeFile != null) {
+                Snapshot snapshot;
+                try {
+                    snapshot = Snapshot.read(Paths.get(resumeFile));
+                } catch (IOException | InvalidPathException e) {
+                    System.out.println("Failed to read snapshot: " + e.getMessage());
+                    return;
+                }
+                machine.run(program, snapshot);
+            } else {
+                machine.run(program);
+            }
+        } catch (IOException | InvalidPathException e) {
             System.out.println("Unknown file!");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         } catch (ParsingException e) {
             System.out.println("Failed to parse program: " + e.getMessage());
-            if (parser != null) {
-                System.out.println("Heap Dump: " + Arrays.toString(parser.getHeap()));
-                System.out.println("Stack Dump: " + parser.getStack().toString());
-                System.out.println("Cursor Position: " + parser.getCursor());
+            System.out.println("Heap Dump: " + machine.formatHeap());
+            System.out.println("Stack Dump: " + machine.getStack().toString());
+            System.out.println("Cursor Position: " + machine.getCursor());
+        } finally {
+            if (machine.getProfiler() != null) {
+                machine.getProfiler().writeReport(System.err);
+            }
+        }
+    }
+
+    private static boolean runBatch(List<String> patterns, int optimizationLevel, int threads, Scheduler.Limits limits,
+            String outputDirectory, String reportJson) {
+        List<BatchRunner.Result> results;
+        long start = System.nanoTime();
+        try {
+            List<Path> programs = BatchRunner.findPrograms(patterns);
+            BatchRunner runner = new BatchRunner(threads, optimizationLevel, limits);
+            if (outputDirectory != null) {
+                runner.setOutputDirectory(Paths.get(outputDirectory));
+            }
+            results = runner.run(programs);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Unknown file!");
+            return false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        long wallNanos = System.nanoTime() - start;
+        BatchRunner.writeText(results, wallNanos, System.out);
+        if (reportJson != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(reportJson), StandardCharsets.UTF_8)) {
+                BatchRunner.writeJson(results, wallNanos, writer);
+            } catch (IOException | InvalidPathException e) {
+                System.out.println("Failed to write report: " + e.getMessage());
+                return false;
             }
         }
+        return results.stream().allMatch(result -> result.getStatus() == BatchRunner.Status.PASSED);
+    }
+
+    private static long parseNumber(String arg, String option, long min, long max, String description) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(option.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(description + " must be a number.");
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(description + " must be between " + min + " and " + max + ".");
+        }
+        return value;
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles Wutlang source into a {@link Program}.
+ */
+public final class WutlangCompiler {
+
+    /**
+     * The version of the compiled form. This must change whenever the
+     * compiler or optimizer would produce a different program from the
+     * same source, so that cached programs are recompiled.
+     */
+    public static final int VERSION = 5;
+
+    private final ProgramBuilder builder = new ProgramBuilder();
+
+    private int[] loopStack = new int[16];
+    private int loopDepth;
+
+    private WutlangCompiler() {
+    }
+
+    /**
+     * Compiles the given source lines.
+     *
+     * @param lines The source lines
+     * @return The compiled program
+     * @throws ParsingException If the loops in the program are unbalanced
+     */
+    public static Program compile(List<String> lines) throws ParsingException {
+        WutlangCompiler compiler = new WutlangCompiler();
+        for (int lineNum = 0; lineNum < lines.size(); lineNum ++) {
+            compiler.compileLine(lines.get(lineNum), lineNum);
+        }
+        return compiler.finish();
+    }
+
+    /**
+     * Compiles source read from a reader, in a single pass. Only the
+     * compiled instructions are kept, never the source itself.
+     *
+     * <p>Lines end at "\n", "\r" or "\r\n", as with
+     * {@link java.io.BufferedReader#readLine()}.</p>
+     *
+     * @param reader The reader, which is read to the end but not closed
+     * @return The compiled program
+     * @throws IOException If the source can't be read
+     * @throws ParsingException If the loops in the program are unbalanced
+     */
+    public static Program compile(Reader reader) throws IOException, ParsingException {
+        WutlangCompiler compiler = new WutlangCompiler();
+        char[] buffer = new char[8192];
+        int lineNum = 0;
+        int columnNum = 0;
+        boolean comment = false;
+        boolean carriageReturn = false;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i ++) {
+                char character = buffer[i];
+                if (character == '\n' || character == '\r') {
+                    if (character == '\r' || !carriageReturn) {
+                        lineNum ++;
+                        columnNum = 0;
+                        comment = false;
+                    }
+                    carriageReturn = character == '\r';
+                    continue;
+                }
+                carriageReturn = false;
+                if (character == '#') {
+                    comment = true;
+                }
+                if (!comment) {
+                    compiler.compileInstruction(character, lineNum, columnNum);
+                }
+                columnNum ++;
+            }
+        }
+        return compiler.finish();
+    }
+
+    /**
+     * Compiles UTF-8 source read from a channel, in a single pass.
+     *
+     * @param channel The channel, which is read to the end but not closed
+     * @return The compiled program
+     * @throws IOException If the source can't be read or isn't valid UTF-8
+     * @throws ParsingException If the loops in the program are unbalanced
+     * @see #compile(Reader)
+     */
+    public static Program compile(ReadableByteChannel channel) throws IOException, ParsingException {
+        return compile(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), 8192));
+    }
+
+    private void compileLine(String line, int lineNum) throws ParsingException {
+        for (int columnNum = 0; columnNum < line.length(); columnNum ++) {
+            char instruction = line.charAt(columnNum);
+            if (instruction == '#') break;
+
+            compileInstruction(instruction, lineNum, columnNum);
+        }
+    }
+
+    private void compileInstruction(char instruction, int lineNum, int columnNum) throws ParsingException {
+        byte opcode = Opcode.fromChar(instruction);
+        if (opcode == Opcode.NONE) return;
+
+        int pc = builder.append(opcode, 0, 0, lineNum, columnNum);
+        if (opcode == Opcode.LOOP_START) {
+            if (loopDepth == loopStack.length) {
+                loopStack = Arrays.copyOf(loopStack, loopDepth << 1);
+            }
+            loopStack[loopDepth ++] = pc;
+        } else if (opcode == Opcode.LOOP_END) {
+            if (loopDepth == 0) {
+                throw new ParsingException("Found end of loop without beginning.", lineNum, columnNum);
+            }
+            int start = loopStack[-- loopDepth];
+            builder.setOperand(start, pc);
+            builder.setOperand(pc, start);
+        }
+    }
+
+    private Program finish() throws ParsingException {
+        if (loopDepth > 0) {
+            int start = loopStack[loopDepth - 1];
+            throw new ParsingException("Found beginning of loop without end.", builder.getLine(start), builder.getColumn(start));
+        }
+        return builder.build();
+    }
+}
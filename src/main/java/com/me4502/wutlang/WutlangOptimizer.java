@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites a compiled {@link Program} into a cheaper equivalent.
+ *
+ * <p>Level 1 folds runs of '+', '-', '<' and '>' into single instructions.
+ * Level 2 additionally replaces common loop idioms: clear loops such as
+ * "[-]", scan loops such as "[>]", and balanced transfer loops such as
+ * "[->+<]", and checks the heap bounds of other loops that end where they
+ * started once per iteration rather than on every move. Level 3
+ * additionally runs the start of the program that doesn't depend on I/O at
+ * compile time, see {@link PartialEvaluator}.</p>
+ */
+public final class WutlangOptimizer {
+
+    public static final int MAX_LEVEL = 3;
+    public static final int DEFAULT_LEVEL = MAX_LEVEL;
+
+    /** The longest loop, in source instructions, that is checked once per iteration. */
+    private static final int MAX_GUARDED_LOOP = 100;
+
+    private final Program program;
+    private final byte[] code;
+    private final int[] operands;
+    private final ProgramBuilder builder = new ProgramBuilder();
+    private boolean idioms;
+    private boolean guardLoops;
+    private boolean uncheckedMoves;
+
+    private WutlangOptimizer(Program program) {
+        this.program = program;
+        this.code = program.getCode();
+        this.operands = program.getOperands();
+    }
+
+    /**
+     * Optimizes an unoptimized program.
+     *
+     * @param program The program, as produced by {@link WutlangCompiler}
+     * @param level The optimization level, from 0 to {@link #MAX_LEVEL}
+     * @return The optimized program
+     */
+    public static Program optimize(Program program, int level) {
+        if (level <= 0) {
+            return program;
+        }
+        WutlangOptimizer optimizer = new WutlangOptimizer(program);
+        optimizer.idioms = level >= 2;
+        optimizer.guardLoops = level >= 2;
+        optimizer.emit(0, program.size());
+        Program optimized = optimizer.builder.build();
+        return level >= 3 ? PartialEvaluator.evaluate(optimized) : optimized;
+    }
+
+    private void emit(int from, int to) {
+        int[] loopStack = new int[16];
+        int loopDepth = 0;
+
+        int pc = from;
+        while (pc < to) {
+            switch (code[pc]) {
+                case Opcode.LOOP_START:
+                    int end = operands[pc];
+                    if (idioms && (emitIdiom(pc, end) || guardLoops && emitGuardedLoop(pc, end))) {
+                        pc = end + 1;
+                        break;
+                    }
+                    if (loopDepth == loopStack.length) {
+                        loopStack = Arrays.copyOf(loopStack, loopDepth << 1);
+                    }
+                    loopStack[loopDepth ++] = append(Opcode.LOOP_START, 0, 0, pc);
+                    pc ++;
+                    break;
+                case Opcode.LOOP_END:
+                    int start = loopStack[-- loopDepth];
+                    builder.setOperand(start, append(Opcode.LOOP_END, start, 0, pc));
+                    pc ++;
+                    break;
+                default:
+                    pc = emitFolded(pc);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Emits the instruction at pc, folded together with any run that follows it.
+     *
+     * @return The index of the next unprocessed instruction
+     */
+    private int emitFolded(int pc) {
+        int start = pc;
+        switch (code[pc]) {
+            case Opcode.INCREMENT:
+            case Opcode.DECREMENT:
+                int delta = 0;
+                for (; pc < code.length; pc ++) {
+                    if (code[pc] == Opcode.INCREMENT) {
+                        delta ++;
+                    } else if (code[pc] == Opcode.DECREMENT) {
+                        delta --;
+                    } else {
+                        break;
+                    }
+                }
+                if (delta != 0) {
+                    append(Opcode.ADD, delta, 0, start);
+                }
+                return pc;
+            case Opcode.RIGHT:
+            case Opcode.LEFT:
+                // Only adjacent characters are folded, so that an underflow or
+                // the heap limit can still be reported at the exact column.
+                byte direction = code[pc];
+                pc ++;
+                while (pc < code.length && code[pc] == direction
+                        && program.getLine(pc) == program.getLine(start)
+                        && program.getColumn(pc) == program.getColumn(start) + (pc - start)) {
+                    pc ++;
+                }
+                int amount = direction == Opcode.RIGHT ? pc - start : start - pc;
+                append(uncheckedMoves ? Opcode.MOVE_UNCHECKED : Opcode.MOVE, amount, 0, start);
+                return pc;
+            default:
+                builder.append(code[pc], operands[pc], 0, program.getLine(pc), program.getColumn(pc));
+                return pc + 1;
+        }
+    }
+
+    private boolean emitIdiom(int start, int end) {
+        if (end - start == 2) {
+            switch (code[start + 1]) {
+                case Opcode.INCREMENT:
+                case Opcode.DECREMENT:
+                    append(Opcode.CLEAR, 0, 0, start);
+                    return true;
+                case Opcode.LEFT:
+                    append(Opcode.SCAN, -1, 0, start + 1);
+                    return true;
+                case Opcode.RIGHT:
+                    append(Opcode.SCAN, 1, 0, start + 1);
+                    return true;
+            }
+        }
+        return emitMultiplyLoop(start, end);
+    }
+
+    private boolean emitMultiplyLoop(int start, int end) {
+        int bodyLength = end - start - 1;
+        int[] deltas = new int[bodyLength * 2 + 1];
+        int offset = 0;
+        int minOffset = 0;
+        int maxOffset = 0;
+        for (int pc = start + 1; pc < end; pc ++) {
+            switch (code[pc]) {
+                case Opcode.INCREMENT:
+                    deltas[offset + bodyLength] ++;
+                    break;
+                case Opcode.DECREMENT:
+                    deltas[offset + bodyLength] --;
+                    break;
+                case Opcode.LEFT:
+                    minOffset = Math.min(minOffset, -- offset);
+                    break;
+                case Opcode.RIGHT:
+                    maxOffset = Math.max(maxOffset, ++ offset);
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        int counter = deltas[bodyLength];
+        if (offset != 0 || (counter != 1 && counter != -1)) {
+            return false;
+        }
+        // The furthest cells visited must be written to, so that the heap
+        // grows and underflows exactly as the loop itself would.
+        if (minOffset < 0 && deltas[minOffset + bodyLength] == 0
+                || maxOffset > 0 && deltas[maxOffset + bodyLength] == 0) {
+            return false;
+        }
+
+        int loopStart = append(Opcode.LOOP_START, 0, 0, start);
+        int guard = -1;
+        if (minOffset < 0) {
+            guard = append(Opcode.MUL_GUARD, 0, minOffset, start);
+        }
+        for (int target = minOffset; target <= maxOffset; target ++) {
+            int delta = deltas[target + bodyLength];
+            if (target != 0 && delta != 0) {
+                append(Opcode.MUL, target, -counter * delta, start);
+            }
+        }
+        append(Opcode.CLEAR, 0, 0, start);
+        builder.setOperand(loopStart, append(Opcode.LOOP_END, loopStart, 0, end));
+
+        if (guard >= 0) {
+            // The guarded loop would underflow, so run it unoptimized to
+            // fail at the same instruction with the same heap.
+            int jump = append(Opcode.JUMP, 0, 0, end);
+            int fallbackStart = append(Opcode.LOOP_START, 0, 0, start);
+            for (int pc = start + 1; pc < end; ) {
+                pc = emitFolded(pc);
+            }
+            builder.setOperand(fallbackStart, append(Opcode.LOOP_END, fallbackStart, 0, end));
+            builder.setOperand(guard, fallbackStart);
+            builder.setOperand(jump, builder.size());
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a loop that ends every iteration where it started, and whose
+     * inner loops do the same. Guards at the start of each iteration check
+     * that the lowest and highest cell the iteration may reach are on the
+     * heap, so the moves inside need no checks. Otherwise the rest of the
+     * loop runs an unoptimized copy, which grows the heap, underflows or
+     * fails at the same instruction as it would without the guards.
+     */
+    private boolean emitGuardedLoop(int start, int end) {
+        if (end - start > MAX_GUARDED_LOOP) {
+            // Keeps both copies of the loop small enough for the JIT to compile as one piece.
+            return false;
+        }
+        int[] range = measureLoop(start, end);
+        if (range == null || range[0] == 0 && range[1] == 0) {
+            return false;
+        }
+
+        int loopStart = append(Opcode.LOOP_START, 0, 0, start);
+        int lowGuard = range[0] < 0 ? append(Opcode.MUL_GUARD, 0, range[0], start) : -1;
+        int highGuard = range[1] > 0 ? append(Opcode.HEAP_GUARD, 0, range[1], start) : -1;
+        guardLoops = false;
+        uncheckedMoves = true;
+        emit(start + 1, end);
+        uncheckedMoves = false;
+        builder.setOperand(loopStart, append(Opcode.LOOP_END, loopStart, 0, end));
+
+        int jump = append(Opcode.JUMP, 0, 0, end);
+        int fallbackStart = append(Opcode.LOOP_START, 0, 0, start);
+        emit(start + 1, end);
+        builder.setOperand(fallbackStart, append(Opcode.LOOP_END, fallbackStart, 0, end));
+        guardLoops = true;
+        if (lowGuard >= 0) {
+            builder.setOperand(lowGuard, fallbackStart);
+        }
+        if (highGuard >= 0) {
+            builder.setOperand(highGuard, fallbackStart);
+        }
+        builder.setOperand(jump, builder.size());
+        return true;
+    }
+
+    /**
+     * Finds the cells an iteration of a loop reaches.
+     *
+     * @return The lowest and highest offset from the cursor at the start of
+     *     the loop, or null if the loop doesn't end where it started
+     */
+    private int[] measureLoop(int start, int end) {
+        int offset = 0;
+        int minOffset = 0;
+        int maxOffset = 0;
+        for (int pc = start + 1; pc < end; pc ++) {
+            switch (code[pc]) {
+                case Opcode.LEFT:
+                    minOffset = Math.min(minOffset, -- offset);
+                    break;
+                case Opcode.RIGHT:
+                    maxOffset = Math.max(maxOffset, ++ offset);
+                    break;
+                case Opcode.LOOP_START:
+                    int[] inner = measureLoop(pc, operands[pc]);
+                    if (inner == null) {
+                        return null;
+                    }
+                    minOffset = Math.min(minOffset, offset + inner[0]);
+                    maxOffset = Math.max(maxOffset, offset + inner[1]);
+                    pc = operands[pc];
+                    break;
+                case Opcode.INCREMENT:
+                case Opcode.DECREMENT:
+                case Opcode.OUTPUT:
+                case Opcode.INPUT:
+                case Opcode.PUSH:
+                case Opcode.POP:
+                    break;
+                default:
+                    // Anything else may move the cursor by an amount that isn't known until it runs.
+                    return null;
+            }
+        }
+        return offset == 0 ? new int[] {minOffset, maxOffset} : null;
+    }
+
+    private int append(byte opcode, int operand, int operand2, int sourcePc) {
+        return builder.append(opcode, operand, operand2, program.getLine(sourcePc), program.getColumn(sourcePc));
+    }
+}
@@ -21,316 +21,299 @@
  */
 package com.me4502.wutlang;
 
-import com.sun.net.httpserver.HttpServer;
-
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.SequenceInputStream;
+import java.io.StringReader;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
-import java.util.Stack;
-import java.util.Vector;
 
+/**
+ * Compiles a program from source and runs it on its own {@link Machine}.
+ *
+ * <p>The program is compiled on the first run, reading the source in a
+ * single pass. To run the same program many times, or on several threads,
+ * compile it once with {@link Program#compile(java.io.Reader, int)} and
+ * run it on a machine per thread.</p>
+ */
 public class WutlangParser {
 
-    private List<String> lines;
+    private final Source source;
+    private Program program;
+    private int optimizationLevel = WutlangOptimizer.DEFAULT_LEVEL;
 
-    private int lineNum;
-    private int columnNum;
+    private final Machine machine = new Machine();
 
-    private int cursor = 0;
+    public WutlangParser(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new NoSuchFileException(file.getPath());
+        }
+        Path path = file.toPath();
+        this.source = optimizationLevel -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return Program.compile(channel, optimizationLevel);
+            }
+        };
+    }
 
-    private char[] heap = new char[1];
-    private int heapLength = 1;
+    public WutlangParser(String lines) {
+        this.source = optimizationLevel -> Program.compile(new StringReader(lines), optimizationLevel);
+    }
 
-    private Stack<Character> stack = new Stack<>();
+    public WutlangParser(List<String> lines) {
+        this.source = optimizationLevel -> Program.compile(lines, optimizationLevel);
+    }
 
-    private File file;
+    /**
+     * Gets the machine that runs this program.
+     *
+     * @return The machine
+     */
+    public Machine getMachine() {
+        return this.machine;
+    }
 
-    private OutputStream fileOutput;
-    private OutputStream netOutput;
+    public int getLineNum() {
+        return this.machine.getLineNum();
+    }
 
-    private InputStream fileInput;
-    private InputStream netInput;
+    public int getColumnNum() {
+        return this.machine.getColumnNum();
+    }
 
-    private boolean networkStreamOpen = false;
+    public int getCursor() {
+        return this.machine.getCursor();
+    }
 
-    private OutputStream output;
-    private InputStream input;
+    /**
+     * Gets a copy of the heap.
+     *
+     * @return The heap, truncated to 16-bit cells
+     */
+    public char[] getHeap() {
+        return this.machine.getHeap();
+    }
 
-    private Stack<LinePos> loopStack = new Stack<>();
-    private int loopSkipping;
+    Heap heap() {
+        return this.machine.heap();
+    }
 
-    private HttpServer server;
+    /**
+     * Sets the heap this program operates on.
+     *
+     * @param heap The heap
+     * @see Machine#setHeap(Heap)
+     */
+    public void setHeap(Heap heap) {
+        this.machine.setHeap(heap);
+    }
 
-    public WutlangParser(File file) throws IOException {
-        this(Files.readAllLines(file.toPath()));
+    /**
+     * Gets a read-only view of the stack, from bottom to top.
+     *
+     * @return The stack
+     */
+    public List<Character> getStack() {
+        return this.machine.getStack();
     }
 
-    public WutlangParser(String lines) {
-        this(Arrays.asList(lines.split("\n")));
+    /**
+     * Sets the size limits of the stack. Any values already on it are discarded.
+     *
+     * @param initialCapacity The number of values to allocate up front
+     * @param maxDepth The maximum number of values
+     */
+    public void setStackLimits(int initialCapacity, int maxDepth) {
+        this.machine.setStackLimits(initialCapacity, maxDepth);
     }
 
-    public WutlangParser(List<String> lines) {
-        this.lines = lines;
+    /**
+     * Sets the optimization level used when compiling this program.
+     *
+     * @param optimizationLevel The level, from 0 to {@link WutlangOptimizer#MAX_LEVEL}
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
     }
 
-    public int getLineNum() {
-        return this.lineNum;
+    /**
+     * Sets the engine used to execute this program.
+     *
+     * @param engine The engine
+     * @see Machine#setEngine(Engine)
+     */
+    public void setEngine(Engine engine) {
+        this.machine.setEngine(engine);
     }
 
-    public int getColumnNum() {
-        return this.columnNum;
+    /**
+     * Sets how webservers started by this program handle requests. Small
+     * responses are delayed by about 40ms unless {@link Machine#enableNoDelay()}
+     * was called first, as the command line does.
+     *
+     * @param threads The maximum number of requests handled at once, or 0
+     * @param requestTimeout The time a request may run for in milliseconds, or 0 for no limit
+     * @see Machine#setServerMode(int, long)
+     */
+    public void setServerMode(int threads, long requestTimeout) {
+        this.machine.setServerMode(threads, requestTimeout);
     }
 
-    public int getCursor() {
-        return this.cursor;
+    /**
+     * Sets how long '@' and '!' wait for a request to arrive.
+     *
+     * @param connectionTimeout The timeout in milliseconds, or 0 to wait forever
+     */
+    public void setConnectionTimeout(long connectionTimeout) {
+        this.machine.setConnectionTimeout(connectionTimeout);
     }
 
-    public char[] getHeap() {
-        return this.heap;
+    /**
+     * Sets whether responses are always sent in chunks.
+     *
+     * @param chunkedResponses True to always send responses in chunks
+     * @see Machine#setChunkedResponses(boolean)
+     */
+    public void setChunkedResponses(boolean chunkedResponses) {
+        this.machine.setChunkedResponses(chunkedResponses);
     }
 
-    public Stack<Character> getStack() {
-        return this.stack;
+    /**
+     * Sets whether webservers started by this program serve their metrics.
+     *
+     * @param metricsEndpoint True to serve the metrics
+     * @see Machine#setMetricsEndpoint(boolean)
+     */
+    public void setMetricsEndpoint(boolean metricsEndpoint) {
+        this.machine.setMetricsEndpoint(metricsEndpoint);
     }
 
-    public void parseProgram() throws ParsingException {
-        output = System.out;
-        input = System.in;
-
-        for (lineNum = 0; lineNum < lines.size(); lineNum ++) {
-            for (columnNum = 0; columnNum < lines.get(lineNum).length(); columnNum ++) {
-                String line = lines.get(lineNum);
-                char instruction = line.toCharArray()[columnNum];
-                if (instruction == '#') break;
-
-                if (loopSkipping == 0 || instruction == ']' || instruction == '[') {
-                    parseChar(instruction);
-                }
+    public ServerMetrics getServerMetrics() {
+        return this.machine.getServerMetrics();
+    }
+
+    /**
+     * Gets the address of the running webserver.
+     *
+     * @return The address, or null if no webserver is running
+     */
+    public InetSocketAddress getServerAddress() {
+        return this.machine.getServerAddress();
+    }
+
+    /**
+     * Stops the webserver.
+     *
+     * @see Machine#stopServer()
+     */
+    public void stopServer() {
+        this.machine.stopServer();
+    }
+
+    /**
+     * Sets whether files opened by the program are memory-mapped for reading.
+     *
+     * @param mapFiles True to map files
+     */
+    public void setMappedFiles(boolean mapFiles) {
+        this.machine.setMappedFiles(mapFiles);
+    }
+
+    /**
+     * Sets whether output is written on a background thread.
+     *
+     * @param capacity The size of the buffer in bytes, or 0 to write on the program's thread
+     * @see Machine#setAsyncOutput(int)
+     */
+    public void setAsyncOutput(int capacity) {
+        this.machine.setAsyncOutput(capacity);
+    }
+
+    /**
+     * Sets where ':' writes a snapshot of the program, instead of dumping the heap.
+     *
+     * @param snapshotFile The file, or null to dump the heap
+     * @see Machine#setSnapshotFile(Path)
+     */
+    public void setSnapshotFile(Path snapshotFile) {
+        this.machine.setSnapshotFile(snapshotFile);
+    }
+
+    /**
+     * Sets the cells ':' dumps.
+     *
+     * @param from The first cell
+     * @param to The cell after the last one
+     * @see Machine#setDumpRange(int, int)
+     */
+    public void setDumpRange(int from, int to) {
+        this.machine.setDumpRange(from, to);
+    }
+
+    /**
+     * Sets the profiler that collects statistics while the program runs.
+     *
+     * @param profiler The profiler, or null to stop profiling
+     * @see Machine#setProfiler(Profiler)
+     */
+    public void setProfiler(Profiler profiler) {
+        this.machine.setProfiler(profiler);
+    }
+
+    public Profiler getProfiler() {
+        return this.machine.getProfiler();
+    }
+
+    /**
+     * Sets whether every written byte is traced to the error stream.
+     *
+     * @param debug If tracing is enabled
+     */
+    public void setDebug(boolean debug) {
+        this.machine.setDebug(debug);
+    }
+
+    /**
+     * Gets the compiled program, compiling it if needed.
+     *
+     * @return The program
+     * @throws ParsingException If the source is invalid
+     */
+    public Program getProgram() throws ParsingException {
+        if (program == null) {
+            try {
+                program = source.compile(optimizationLevel);
+            } catch (IOException e) {
+                throw new ParsingException("Failed to read program: " + e.getMessage(), 0, 0);
             }
         }
+        return program;
     }
 
-    private void parseChar(char instruction) throws ParsingException {
-        switch(instruction) {
-            case '<':
-                cursor --;
-                if (cursor < 0) {
-                    throw new ParsingException("Cursor pointing to negative heapspace.", this);
-                }
-                break;
-            case '>':
-                cursor ++;
-                if (cursor >= heapLength) {
-                    expandHeap();
-                }
-                break;
-            case '.':
-                try {
-                    output.write(heap[cursor]);
-                    System.out.println("Writing " + heap[cursor]);
-                } catch (IOException e) {
-                    throw new ParsingException("Failed to write to output: " + e.getMessage(), this);
-                }
-                break;
-            case ',':
-                try {
-                    heap[cursor] = (char) input.read();
-                } catch (IOException e) {
-                    throw new ParsingException("Failed to read from input: " + e.getMessage(), this);
-                }
-                break;
-            case '+':
-                heap[cursor] ++;
-                break;
-            case '-':
-                heap[cursor] --;
-                break;
-            case 'c':
-                output = System.out;
-                break;
-            case 'r':
-                input = System.in;
-                break;
-            case '^':
-                stack.push(heap[cursor]);
-                break;
-            case 'V':
-                heap[cursor] = stack.pop();
-                break;
-            case '[':
-                if ((heap[cursor]) == 0) {
-                    loopSkipping ++;
-                } else {
-                    loopStack.push(new LinePos(lineNum, columnNum));
-                }
-                break;
-            case ']':
-                if (loopSkipping > 0) {
-                    loopSkipping --;
-                } else {
-                    if (loopStack.size() > 0) {
-                        LinePos pos = loopStack.pop();
-                        lineNum = pos.getLine();
-                        columnNum = pos.getColumn() - 1;
-                    } else {
-                        throw new ParsingException("Found end of loop without beginning.", this);
-                    }
-                }
-                break;
-            case '$':
-                StringBuilder port = new StringBuilder();
-                char read;
-                while ((read = heap[cursor]) != 0) {
-                    cursor ++;
-                    port.append(read);
-                }
-                cursor ++;
-                try {
-                    if (server != null) {
-                        throw new ParsingException("Webserver is already running.", this);
-                    }
-                    server = HttpServer.create(new InetSocketAddress("localhost", Integer.parseInt(port.toString())), 0);
-                    System.out.println(server.getAddress().toString());
-                    server.createContext("/", httpExchange -> {
-                        Vector<InputStream> streamEnumeration = new Vector<>();
-                        streamEnumeration.add(new ByteArrayInputStream(httpExchange.getLocalAddress().getAddress().getAddress()));
-                        streamEnumeration.add(new ByteArrayInputStream(httpExchange.getRequestMethod().getBytes()));
-                        streamEnumeration.add(new ByteArrayInputStream(httpExchange.getRequestURI().getPath().substring(1).getBytes()));
-                        streamEnumeration.add(httpExchange.getRequestBody());
-                        InputStream newInput = new SequenceInputStream(streamEnumeration.elements());
-                        if (netInput == input) {
-                            input = newInput;
-                        }
-                        netInput = newInput;
-                        OutputStream newOutput = httpExchange.getResponseBody();
-                        if (netOutput == output) {
-                            output = newOutput;
-                        }
-                        netOutput = newOutput;
-                        httpExchange.sendResponseHeaders(200, (int)heap[cursor]);
-                        networkStreamOpen = true;
-                    });
-                    server.setExecutor(null);
-                    server.start();
-                } catch (IOException e) {
-                    throw new ParsingException("Failed to create webserver. " + e.getMessage(), this);
-                }
-                break;
-            case '@':
-                if (server == null) {
-                    throw new ParsingException("Webserver must be created before setting stream.", this);
-                }
-                if (!networkStreamOpen) {
-                    columnNum--;
-                    break;
-                }
-                input = netInput;
-                break;
-            case '!':
-                if (server == null) {
-                    throw new ParsingException("Webserver must be created before setting stream.", this);
-                }
-                if (!networkStreamOpen) {
-                    columnNum--;
-                    break;
-                }
-                output = netOutput;
-                break;
-            case '%':
-                networkStreamOpen = false;
-                try {
-                    netOutput.close();
-                    netInput.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case '~':
-                if (server == null) {
-                    throw new ParsingException("Webserver must be created before it can be shutdown.", this);
-                }
-                server.stop(2);
-                server = null;
-                break;
-            case '&':
-                StringBuilder filename = new StringBuilder();
-                while ((read = heap[cursor]) != 0) {
-                    cursor ++;
-                    filename.append(read);
-                }
-                cursor ++;
-
-                file = new File(filename.toString());
-                try {
-                    fileOutput = new FileOutputStream(file, true);
-                    fileInput = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                    throw new ParsingException("Failed to access file. " + e.getMessage(), this);
-                }
-                break;
-            case 'o':
-                if (file == null) {
-                    throw new ParsingException("File must be loaded before setting stream.", this);
-                }
-                output = fileOutput;
-                break;
-            case 'i':
-                if (file == null) {
-                    throw new ParsingException("File must be loaded before setting stream.", this);
-                }
-                input = fileInput;
-                break;
-            case 'p':
-                if (file == null) {
-                    throw new ParsingException("File must be loaded before clearing.", this);
-                }
-
-                try {
-                    fileOutput.close();
-                    fileInput.close();
-
-                    PrintWriter out = new PrintWriter(file);
-                    out.write("");
-                    out.close();
-
-                    fileOutput = new FileOutputStream(file, true);
-                    fileInput = new FileInputStream(file);
-                } catch (IOException e) {
-                    throw new ParsingException("Failed to clear file. " + e.getMessage(), this);
-                }
-                break;
-            case 'e':
-                if (file == null) {
-                    throw new ParsingException("File must be loaded before clearing.", this);
-                }
-
-                file = null;
-                try {
-                    fileOutput.close();
-                    fileInput.close();
-                } catch (IOException e) {
-                    throw new ParsingException("Failed to close file. " + e.getMessage(), this);
-                }
-                break;
-            case ':':
-                System.out.println(Arrays.toString(heap));
-                break;
-        }
+    public void parseProgram() throws ParsingException {
+        machine.run(getProgram());
+    }
+
+    /**
+     * Resumes the program from a snapshot taken by ':'.
+     *
+     * @param snapshot The snapshot
+     * @throws ParsingException If the snapshot doesn't fit the program, or the program fails
+     * @see Machine#run(Program, Snapshot)
+     */
+    public void resumeProgram(Snapshot snapshot) throws ParsingException {
+        machine.run(getProgram(), snapshot);
     }
 
-    private void expandHeap() {
-        heapLength <<= 1;
-        heap = Arrays.copyOf(heap, heapLength);
+    String formatHeap() {
+        return this.machine.formatHeap();
+    }
+
+    private interface Source {
+
+        Program compile(int optimizationLevel) throws IOException, ParsingException;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class AsyncWriterTest {
+
+    /**
+     * A stream that fails if it's written to once the writer has moved on.
+     */
+    private static final class Target extends ByteArrayOutputStream {
+
+        private volatile boolean replaced;
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            if (replaced) {
+                throw new IllegalStateException("Written to after being replaced.");
+            }
+            super.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (replaced) {
+                throw new IOException("Flushed after being replaced.");
+            }
+        }
+    }
+
+    @Test
+    public void testFlushBeforeSwitchingTarget() throws IOException {
+        // Switches the stream after every flush, as switching between the
+        // console, files and the network does, so a flush that returns
+        // before every byte is written sends bytes to the wrong stream.
+        AsyncWriter writer = new AsyncWriter(16);
+        Random random = new Random(4502);
+        try {
+            for (int i = 0; i < 50000; i ++) {
+                Target target = new Target();
+                writer.setTarget(target);
+                byte[] bytes = new byte[1 + random.nextInt(40)];
+                Arrays.fill(bytes, (byte) (i % 2 == 0 ? 'a' : 'b'));
+                int split = random.nextInt(bytes.length);
+                writer.write(bytes, 0, split);
+                if (random.nextBoolean()) {
+                    Thread.yield();
+                }
+                writer.write(bytes, split, bytes.length - split);
+                writer.flush();
+                target.replaced = true;
+                assertArrayEquals("Switch " + i, bytes, target.toByteArray());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BatchRunnerTest {
+
+    // Echoes its input until the end of it.
+    private static final String ECHO = ",[.,]";
+
+    private static void write(Path file, String contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFindPrograms() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        write(directory.resolve("a.wut"), "+");
+        write(directory.resolve("a.in"), "");
+        write(directory.resolve("nested/b.wut"), "+");
+        write(directory.resolve("nested/c.wut"), "+");
+        assertEquals(Arrays.asList(directory.resolve("a.wut"), directory.resolve("nested/b.wut"), directory.resolve("nested/c.wut")),
+                BatchRunner.findPrograms(Collections.singletonList(directory.toString())));
+        assertEquals(Collections.singletonList(directory.resolve("nested/b.wut")),
+                BatchRunner.findPrograms(Arrays.asList(directory + "/**/b.wut", directory.resolve("nested/b.wut").toString())));
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path output = Files.createTempDirectory("wutlang");
+        write(directory.resolve("pass.wut"), ECHO);
+        write(directory.resolve("pass.in"), "hello");
+        write(directory.resolve("pass.out"), "hello");
+        write(directory.resolve("fail.wut"), ECHO);
+        write(directory.resolve("fail.in"), "hello");
+        write(directory.resolve("fail.out"), "world");
+        write(directory.resolve("unbalanced.wut"), "[");
+        write(directory.resolve("slow.wut"), "+[]");
+        write(directory.resolve("unchecked.wut"), ECHO);
+
+        BatchRunner runner = new BatchRunner(2, WutlangOptimizer.DEFAULT_LEVEL, new Scheduler.Limits(Long.MAX_VALUE, 100, Long.MAX_VALUE, 16));
+        runner.setOutputDirectory(output);
+        List<BatchRunner.Result> results = runner.run(BatchRunner.findPrograms(Collections.singletonList(directory.toString())));
+        assertEquals(5, results.size());
+        assertEquals(BatchRunner.Status.FAILED, results.get(0).getStatus());
+        assertEquals(BatchRunner.Status.PASSED, results.get(1).getStatus());
+        assertNull(results.get(1).getMessage());
+        assertTrue(results.get(1).getIterations() > 0);
+        assertEquals(BatchRunner.Status.ERROR, results.get(2).getStatus());
+        assertTrue(results.get(2).getMessage().startsWith("Time limit of 100ms exceeded."));
+        assertEquals(BatchRunner.Status.ERROR, results.get(3).getStatus());
+        assertEquals(BatchRunner.Status.PASSED, results.get(4).getStatus());
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(output.resolve("fail.out")));
+
+        StringWriter json = new StringWriter();
+        BatchRunner.writeJson(results, 0, json);
+        assertTrue(json.toString().contains("\"status\": \"failed\""));
+        assertTrue(json.toString().contains("\"passed\": 2,\n  \"failed\": 1,\n  \"errors\": 2,"));
+    }
+
+    @Test
+    public void testOutputDirectory() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path output = Files.createTempDirectory("wutlang");
+        write(directory.resolve("a/echo.wut"), ECHO);
+        write(directory.resolve("a/echo.in"), "hello");
+        write(directory.resolve("a/echo.out"), "world");
+        write(directory.resolve("b/echo.wut"), ECHO);
+        write(directory.resolve("b/echo.in"), "bye");
+
+        BatchRunner runner = new BatchRunner(2, WutlangOptimizer.DEFAULT_LEVEL, new Scheduler.Limits(Long.MAX_VALUE, 0, Long.MAX_VALUE, 16));
+        List<Path> programs = BatchRunner.findPrograms(Collections.singletonList(directory.toString()));
+        runner.setOutputDirectory(output);
+        List<BatchRunner.Result> results = runner.run(programs);
+        assertEquals(BatchRunner.Status.FAILED, results.get(0).getStatus());
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(output.resolve("a/echo.out")));
+        assertArrayEquals("bye".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(output.resolve("b/echo.out")));
+
+        // Writing into the programs' own directory would replace the expected output.
+        runner.setOutputDirectory(directory);
+        try {
+            runner.run(programs);
+            fail("Expected the output directory to be rejected.");
+        } catch (IllegalArgumentException e) {
+            assertArrayEquals("world".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(directory.resolve("a/echo.out")));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Runs random programs on every engine, optimization level and heap, and
+ * checks they end exactly like the unoptimized interpreter on the same heap.
+ *
+ * <p>The programs are the same on every run. Set {@code wutlang.fuzz.seed}
+ * to try other programs, and {@code wutlang.fuzz.programs} to run more.</p>
+ */
+public class DifferentialTest {
+
+    private static final long SEED = 4502;
+    private static final long BUDGET = 200000;
+    private static final long HEAP_LIMIT = 512;
+    private static final byte[] INPUT = "Wut\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Every heap, and every cell width. */
+    private static final List<Supplier<Heap>> HEAPS = Arrays.asList(
+            () -> new ArrayHeap(1, HEAP_LIMIT),
+            () -> new PagedHeap(16, 1, HEAP_LIMIT, false),
+            () -> new PagedHeap(16, 1, HEAP_LIMIT, true),
+            () -> new PagedHeap(8, 1, HEAP_LIMIT, false),
+            () -> new PagedHeap(32, 1, HEAP_LIMIT, false)
+    );
+
+    /**
+     * How a program ended.
+     */
+    private static final class Outcome {
+
+        private final int[] heap;
+        private final int cursor;
+        private final List<Character> stack;
+        private final byte[] output;
+        private final String error;
+
+        private Outcome(Machine machine, ByteArrayOutputStream output, ParsingException error) {
+            this.heap = machine.heap().toIntArray();
+            this.cursor = machine.getCursor();
+            this.stack = new ArrayList<>(machine.getStack());
+            this.output = output.toByteArray();
+            this.error = error == null ? null : error.getMessage();
+        }
+
+        private void assertMatches(Outcome expected, String description) {
+            assertEquals(description + ": error", expected.error, error);
+            assertEquals(description + ": cursor", expected.cursor, cursor);
+            assertArrayEquals(description + ": heap", expected.heap, heap);
+            assertEquals(description + ": stack", expected.stack, stack);
+            assertArrayEquals(description + ": output", expected.output, output);
+        }
+    }
+
+    private interface Runner {
+
+        void run(Machine machine, Program program) throws Exception;
+    }
+
+    private static Machine newMachine(Supplier<Heap> heap, ByteArrayOutputStream output) {
+        Machine machine = new Machine();
+        machine.setHeap(heap.get());
+        machine.setStackLimits(CharStack.DEFAULT_CAPACITY, 64);
+        machine.setConsole(new ByteArrayInputStream(INPUT), output);
+        return machine;
+    }
+
+    /**
+     * Runs a program on the reference interpreter.
+     *
+     * @return How it ended, or null if it didn't end within the budget
+     */
+    private static Outcome reference(List<String> source, Supplier<Heap> heap) throws ParsingException {
+        Program program = Program.compile(source, 0);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Machine machine = newMachine(heap, output);
+        ParsingException error = null;
+        try {
+            machine.begin(program);
+            if (machine.resume(BUDGET) != Machine.FINISHED) {
+                return null;
+            }
+        } catch (ParsingException e) {
+            error = e;
+        }
+        return new Outcome(machine, output, error);
+    }
+
+    private static Outcome run(ExecutorService executor, Program program, Supplier<Heap> heap, String description,
+            Runner runner) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Machine machine = newMachine(heap, output);
+        Future<ParsingException> result = executor.submit(() -> {
+            try {
+                runner.run(machine, program);
+                return null;
+            } catch (ParsingException e) {
+                return e;
+            }
+        });
+        try {
+            return new Outcome(machine, output, result.get(10, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new AssertionError(description + ": didn't finish, but the reference interpreter did");
+        }
+    }
+
+    @Test
+    public void testRandomPrograms() throws Exception {
+        long seed = Long.getLong("wutlang.fuzz.seed", SEED);
+        int programs = Integer.getInteger("wutlang.fuzz.programs", 300);
+        Random random = new Random(seed);
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wutlang-fuzz");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int compared = 0;
+        try {
+            for (int i = 0; i < programs; i ++) {
+                List<String> source = generate(random);
+                Program[] levels = new Program[WutlangOptimizer.MAX_LEVEL + 1];
+                for (int level = 0; level < levels.length; level ++) {
+                    levels[level] = Program.compile(source, level);
+                }
+                for (Supplier<Heap> heap : HEAPS) {
+                    Outcome expected = reference(source, heap);
+                    if (expected == null) {
+                        continue;
+                    }
+                    compared ++;
+                    for (int level = 0; level < levels.length; level ++) {
+                        String description = "seed " + seed + ", program " + source + ", " + describe(heap) + ", level " + level;
+                        for (Engine engine : Engine.values()) {
+                            String engineDescription = description + ", " + engine;
+                            run(executor, levels[level], heap, engineDescription, (machine, p) -> {
+                                machine.setEngine(engine);
+                                machine.run(p);
+                            }).assertMatches(expected, engineDescription);
+                        }
+                        run(executor, levels[level], heap, description + ", profiled", (machine, p) -> {
+                            machine.setProfiler(new Profiler());
+                            machine.run(p);
+                        }).assertMatches(expected, description + ", profiled");
+                        run(executor, levels[level], heap, description + ", sliced", (machine, p) -> {
+                            // Yields every few iterations, as the scheduler does.
+                            machine.begin(p);
+                            while (machine.resume(7) != Machine.FINISHED) {
+                                machine.awaitIo();
+                            }
+                        }).assertMatches(expected, description + ", sliced");
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("Too few programs ended within the budget, seed " + seed, compared > programs * HEAPS.size() / 4);
+    }
+
+    @Test
+    public void testWraparound() throws Exception {
+        assertAllMatch("-", "-[-]", "->-[+<]", "--[-->+<]", "->>-[[-<]>]");
+    }
+
+    @Test
+    public void testHeapLimit() throws Exception {
+        // Runs of '>' fail at the exact character that passes the limit.
+        assertAllMatch("+\n+[>>++]", "+[>>>> >>+]", "+[>>>[-]+]", "+[>[->>+<<]>]");
+    }
+
+    private static void assertAllMatch(String... sources) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (String source : sources) {
+                List<String> lines = Arrays.asList(source.split("\n"));
+                for (Supplier<Heap> heap : HEAPS) {
+                    Outcome expected = reference(lines, heap);
+                    if (expected == null && heap.get().getCellWidth() > 16) {
+                        // Counting down to a wraparound takes too long with 32-bit cells.
+                        continue;
+                    }
+                    assertNotNull(source + ", " + describe(heap) + ": reference interpreter didn't finish", expected);
+                    for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+                        for (Engine engine : Engine.values()) {
+                            String description = source + ", " + describe(heap) + ", level " + level + ", " + engine;
+                            run(executor, Program.compile(lines, level), heap, description, (machine, p) -> {
+                                machine.setEngine(engine);
+                                machine.run(p);
+                            }).assertMatches(expected, description);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String describe(Supplier<Heap> supplier) {
+        Heap heap = supplier.get();
+        String type = heap instanceof PagedHeap ? ((PagedHeap) heap).isDirect() ? "direct" : "paged" : "array";
+        return type + " heap, " + heap.getCellWidth() + "-bit cells";
+    }
+
+    /**
+     * Generates a well-formed program, spread over a few lines with
+     * comments, so positions in errors are checked too.
+     */
+    private static List<String> generate(Random random) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        int length = 1 + random.nextInt(60);
+        int depth = 0;
+        for (int i = 0; i < length || depth > 0; i ++) {
+            int choice = random.nextInt(100);
+            if (i >= length || choice < 8 && depth > 0) {
+                line.append(']');
+                depth --;
+            } else if (choice < 18 && depth < 4) {
+                line.append('[');
+                depth ++;
+            } else if (choice < 40) {
+                line.append('+');
+            } else if (choice < 55) {
+                line.append('-');
+            } else if (choice < 70) {
+                line.append('>');
+            } else if (choice < 80) {
+                line.append('<');
+            } else if (choice < 84) {
+                line.append('.');
+            } else if (choice < 87) {
+                line.append(',');
+            } else if (choice < 90) {
+                line.append('^');
+            } else if (choice < 92) {
+                line.append('V');
+            } else if (choice < 95) {
+                line.append(' ');
+            } else if (choice < 97) {
+                line.append(" # comment");
+                lines.add(line.toString());
+                line.setLength(0);
+            } else {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+        }
+        lines.add(line.toString());
+        return lines;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class HeapTest {
+
+    private static WutlangParser run(String source, Heap heap) {
+        WutlangParser parser = new WutlangParser(source);
+        parser.setHeap(heap);
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        return parser;
+    }
+
+    @Test
+    public void testPagedHeapMatchesArrayHeap() {
+        String source = "++>+>+++>++++>>>>>>>>>>[-]<<<<<[<]-";
+        char[] expected = run(source, new ArrayHeap()).getHeap();
+        assertArrayEquals(expected, run(source, new PagedHeap(16, 1, Long.MAX_VALUE, false)).getHeap());
+        assertArrayEquals(expected, run(source, new PagedHeap(16, 1, Long.MAX_VALUE, true)).getHeap());
+    }
+
+    @Test
+    public void testCellWidthWraparound() {
+        assertArrayEquals(new int[] {255, 0, 254, 0}, run("->-[->++<]", new PagedHeap(8, 1, Long.MAX_VALUE, false)).heap().toIntArray());
+        assertArrayEquals(new int[] {65535, 0, 65534, 0}, run("->-[->++<]", new PagedHeap(16, 1, Long.MAX_VALUE, false)).heap().toIntArray());
+        assertArrayEquals(new int[] {-1, 0, -2, 0}, run("->-[->++<]", new PagedHeap(32, 1, Long.MAX_VALUE, false)).heap().toIntArray());
+    }
+
+    @Test
+    public void testSparseHeap() {
+        PagedHeap heap = new PagedHeap(8, 1, Long.MAX_VALUE, false);
+        assertTrue(heap.ensureCapacity(1 << 20));
+        heap.set(1 << 20, 7);
+        assertEquals(7, heap.get(1 << 20));
+        assertEquals(0, heap.get(12345));
+        assertEquals(1 << 21, heap.length());
+    }
+
+    @Test
+    public void testHeapLimit() {
+        for (Heap heap : new Heap[] {new ArrayHeap(1, 8), new PagedHeap(16, 1, 8, false)}) {
+            WutlangParser parser = new WutlangParser("+>+>+>+\n>+");
+            parser.setHeap(heap);
+            try {
+                parser.parseProgram();
+                fail("Expected the heap limit to be exceeded.");
+            } catch (ParsingException e) {
+                assertTrue(e.getMessage().endsWith("[2:1]"));
+            }
+            assertArrayEquals(new char[] {1, 1, 1, 1}, parser.getHeap());
+        }
+    }
+
+    @Test
+    public void testStackWithWideCells() {
+        // Multiplies 16 by itself four times, leaving 65536 in the fifth cell.
+        String sixteen = "++++++++++++++++";
+        String source = sixteen + "[>" + sixteen + "[>" + sixteen + "[>" + sixteen + "[>+<-]<-]<-]<-]>>>>";
+        assertEquals(65535, run(source + "-^[-]V", new PagedHeap(32, 1, Long.MAX_VALUE, false)).heap().get(4));
+
+        WutlangParser parser = new WutlangParser(source + "^");
+        parser.setHeap(new PagedHeap(32, 1, Long.MAX_VALUE, false));
+        try {
+            parser.parseProgram();
+            fail("Expected pushing a 32-bit value to fail.");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().startsWith("Cannot push 65536,"));
+        }
+        assertEquals(65536, parser.heap().get(4));
+        assertTrue(parser.getStack().isEmpty());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class JitCompilerTest {
+
+    private static WutlangParser run(String source, int level, Engine engine) {
+        WutlangParser parser = new WutlangParser(source);
+        parser.setOptimizationLevel(level);
+        parser.setEngine(engine);
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        return parser;
+    }
+
+    private static void assertSameAsInterpreter(String source) {
+        for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+            WutlangParser interpreted = run(source, level, Engine.INTERPRETER);
+            WutlangParser compiled = run(source, level, Engine.JIT);
+            assertArrayEquals(interpreted.getHeap(), compiled.getHeap());
+            assertEquals(interpreted.getCursor(), compiled.getCursor());
+        }
+    }
+
+    @Test
+    public void testLoops() {
+        assertSameAsInterpreter(">++>++>++[[-]<]");
+        assertSameAsInterpreter("++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>");
+        assertSameAsInterpreter("+++++[->++>+++<<]>>>+++[+<<->>]>>>>>>>>+[<]");
+    }
+
+    @Test
+    public void testUnderflow() {
+        for (String source : new String[] {"<", "><<", "+>>+[-<<<+>>>]", ">+[<]<"}) {
+            WutlangParser parser = new WutlangParser(source);
+            parser.setEngine(Engine.JIT);
+            WutlangParser reference = new WutlangParser(source);
+            reference.setOptimizationLevel(0);
+            try {
+                reference.parseProgram();
+                fail("Expected " + source + " to underflow.");
+            } catch (ParsingException expected) {
+                try {
+                    parser.parseProgram();
+                    fail("Expected " + source + " to underflow.");
+                } catch (ParsingException e) {
+                    assertEquals(expected.getMessage(), e.getMessage());
+                    assertArrayEquals(reference.getHeap(), parser.getHeap());
+                    assertEquals(-1, parser.getCursor());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLargeProgramIsSplit() throws ParsingException {
+        StringBuilder source = new StringBuilder("+++[>");
+        for (int i = 0; i < 2000; i ++) {
+            source.append("+>[-]+<");
+        }
+        source.append("<-]");
+        Program program = WutlangOptimizer.optimize(WutlangCompiler.compile(Arrays.asList(source.toString())), 1);
+        assertNotNull(JitCompiler.compile(program));
+        assertSameAsInterpreter(source.toString());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MachineTest {
+
+    private static final String NESTED = "++++++++[>++++++++[>--[-->+>+++<<]<-]<-]^";
+
+    @Test
+    public void testReset() throws ParsingException {
+        Program program = Program.compile(Arrays.asList(NESTED), WutlangOptimizer.DEFAULT_LEVEL);
+        Machine machine = new Machine();
+        machine.run(program);
+        char[] heap = machine.getHeap();
+        assertEquals(1, machine.getStack().size());
+
+        machine.reset();
+        assertNull(machine.getProgram());
+        assertEquals(0, machine.getCursor());
+        assertArrayEquals(new char[] {0}, machine.getHeap());
+        assertEquals(0, machine.getStack().size());
+
+        machine.run(program);
+        assertArrayEquals(heap, machine.getHeap());
+    }
+
+    @Test
+    public void testSharedProgram() throws Exception {
+        for (Engine engine : Engine.values()) {
+            Program program = Program.compile(Arrays.asList(NESTED), WutlangOptimizer.DEFAULT_LEVEL);
+            Machine reference = new Machine();
+            reference.run(program);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<char[]>> heaps = new ArrayList<>();
+            for (int i = 0; i < 4; i ++) {
+                heaps.add(executor.submit(() -> {
+                    Machine machine = new Machine();
+                    machine.setEngine(engine);
+                    char[] heap = null;
+                    for (int run = 0; run < 10; run ++) {
+                        machine.run(program);
+                        heap = machine.getHeap();
+                        machine.reset();
+                    }
+                    return heap;
+                }));
+            }
+            for (Future<char[]> heap : heaps) {
+                assertArrayEquals(reference.getHeap(), heap.get(10, TimeUnit.SECONDS));
+            }
+            executor.shutdown();
+        }
+    }
+
+    private static String repeat(char character, int count) {
+        char[] characters = new char[count];
+        Arrays.fill(characters, character);
+        return new String(characters);
+    }
+
+    @Test
+    public void testInputSwitching() throws Exception {
+        Path input = Files.createTempDirectory("wutlang").resolve("input.txt");
+        Files.write(input, "xyz".getBytes(StandardCharsets.UTF_8));
+        String name = input.toString();
+        ArrayHeap heap = new ArrayHeap();
+        heap.ensureCapacity(name.length());
+        for (int i = 0; i < name.length(); i ++) {
+            heap.set(i, name.charAt(i));
+        }
+        Machine machine = new Machine();
+        machine.setHeap(heap);
+        machine.setConsole(new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+        // Both streams are read ahead, and neither loses bytes to the other. Reads past the end are 0.
+        machine.run(Program.compile(Arrays.asList("&,>i,>r,>i,>r,>,>i,>,"), 0));
+        char[] cells = Arrays.copyOfRange(machine.getHeap(), name.length() + 1, name.length() + 9);
+        assertArrayEquals(new char[] {'a', 'x', 'b', 'y', 'c', 0, 'z', 0}, cells);
+        machine.reset();
+    }
+
+    @Test
+    public void testAsyncOutput() throws ParsingException {
+        // Writes "A" and "B" well past the size of every buffer, with a heap dump to the same stream in between.
+        Program program = Program.compile(Arrays.asList("++++++++[>++++++++<-]>+" + repeat('.', 10000) + ":+" + repeat('.', 10000)),
+                WutlangOptimizer.DEFAULT_LEVEL);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Machine machine = new Machine();
+        machine.setConsole(null, expected);
+        machine.run(program);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        machine = new Machine();
+        machine.setConsole(null, output);
+        machine.setAsyncOutput(16);
+        machine.run(program);
+        assertArrayEquals(expected.toByteArray(), output.toByteArray());
+    }
+
+    @Test
+    public void testAsyncOutputFailure() {
+        Program program;
+        try {
+            program = Program.compile(Arrays.asList("+" + repeat('.', 20000)), WutlangOptimizer.DEFAULT_LEVEL);
+        } catch (ParsingException e) {
+            throw new AssertionError(e);
+        }
+        Machine machine = new Machine();
+        machine.setConsole(null, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        });
+        machine.setAsyncOutput(16);
+        try {
+            machine.run(program);
+            fail("Expected the failed write to fail the program.");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().startsWith("Failed to write to output: Broken pipe"));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class ProfilerTest {
+
+    private static Profiler profile(String source, int optimizationLevel) {
+        WutlangParser parser = new WutlangParser(source);
+        parser.setOptimizationLevel(optimizationLevel);
+        parser.setProfiler(new Profiler());
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        return parser.getProfiler();
+    }
+
+    @Test
+    public void testInstructionCounts() {
+        Profiler profiler = profile("+++[>++<-]", 0);
+        assertEquals(Long.valueOf(9), profiler.getInstructionCounts().get("INCREMENT"));
+        assertEquals(Long.valueOf(3), profiler.getInstructionCounts().get("DECREMENT"));
+        assertEquals(Long.valueOf(1), profiler.getInstructionCounts().get("LOOP_START"));
+        assertEquals(Long.valueOf(3), profiler.getInstructionCounts().get("LOOP_END"));
+        assertEquals(22, profiler.getInstructions());
+        assertEquals(1, profiler.getHighestCell());
+    }
+
+    @Test
+    public void testLoops() {
+        // The inner loop runs twice for each of the three outer iterations, and is skipped once.
+        Profiler profiler = profile(">+++[>++[-]<-]>[-]", 0);
+        List<Profiler.LoopProfile> loops = profiler.getLoops();
+        assertEquals(3, loops.size());
+        long[][] expected = {{0, 4, 1, 3}, {0, 8, 3, 6}, {0, 15, 1, 0}};
+        for (long[] loop : expected) {
+            Profiler.LoopProfile profile = loops.stream()
+                    .filter(candidate -> candidate.getPosition().getColumn() == loop[1]).findFirst().orElse(null);
+            if (profile == null) {
+                fail("Missing loop at column " + loop[1]);
+            }
+            assertArrayEquals(loop, new long[] {profile.getPosition().getLine(), profile.getPosition().getColumn(),
+                    profile.getEntries(), profile.getIterations()});
+        }
+    }
+
+    @Test
+    public void testOptimizedLoopsCountOnce() {
+        Profiler profiler = profile("+++[>++<-]", 2);
+        assertEquals(1, profiler.getLoops().size());
+        assertEquals(1, profiler.getLoops().get(0).getIterations());
+        assertEquals(1, profiler.getHighestCell());
+    }
+
+    @Test
+    public void testGuardedLoopFallback() {
+        // The guard bails out to the unoptimized copy, which then underflows.
+        WutlangParser parser = new WutlangParser("+[<+>-]");
+        parser.setProfiler(new Profiler());
+        try {
+            parser.parseProgram();
+            fail("Expected the cursor to underflow");
+        } catch (ParsingException expected) {
+        }
+        assertEquals(1, parser.getProfiler().getLoops().size());
+        assertEquals(2, parser.getProfiler().getLoops().get(0).getEntries());
+    }
+
+    @Test
+    public void testStackDepth() {
+        assertEquals(3, profile("+^^^VV^V", 0).getMaxStackDepth());
+    }
+}
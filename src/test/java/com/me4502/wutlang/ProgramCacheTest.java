@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ProgramCacheTest {
+
+    private static final String SOURCE = "++++++++[>++++++++<-]>[>+>++<<-]\n# comment\n>>[-]<^";
+
+    private static Path writeSource(Path directory, String source) throws IOException {
+        Path file = directory.resolve("test.wut");
+        Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void assertSameProgram(Program expected, Program actual) {
+        assertArrayEquals(expected.getCode(), actual.getCode());
+        assertArrayEquals(expected.getOperands(), actual.getOperands());
+        assertArrayEquals(expected.getOperands2(), actual.getOperands2());
+        for (int pc = 0; pc < expected.size(); pc ++) {
+            assertEquals(expected.getLine(pc), actual.getLine(pc));
+            assertEquals(expected.getColumn(pc), actual.getColumn(pc));
+        }
+    }
+
+    @Test
+    public void testMemoryCache() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path source = writeSource(directory, SOURCE);
+        ProgramCache cache = new ProgramCache(null, ProgramCache.DEFAULT_MAX_BYTES);
+        Program program = cache.load(source, 2);
+        assertSame(program, cache.load(source, 2));
+        assertNotSame(program, cache.load(source, 0));
+        assertTrue(Files.exists(directory.resolve("test" + ProgramCache.EXTENSION)));
+    }
+
+    @Test
+    public void testFileCache() throws Exception {
+        Path sources = Files.createTempDirectory("wutlang");
+        Path directory = Files.createTempDirectory("wutlang");
+        Path source = writeSource(sources, SOURCE);
+        Program expected = new WutlangParser(SOURCE).getProgram();
+        for (int i = 0; i < 2; i ++) {
+            Program program = new ProgramCache(directory, ProgramCache.DEFAULT_MAX_BYTES).load(source, WutlangOptimizer.DEFAULT_LEVEL);
+            assertSameProgram(expected, program);
+        }
+        Path[] files = Files.list(directory).toArray(Path[]::new);
+        assertEquals(1, files.length);
+
+        // A damaged file is compiled again and replaced.
+        byte[] bytes = Files.readAllBytes(files[0]);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(files[0], bytes);
+        assertSameProgram(expected, new ProgramCache(directory, ProgramCache.DEFAULT_MAX_BYTES).load(source, WutlangOptimizer.DEFAULT_LEVEL));
+        assertEquals(1, bytes[bytes.length - 1] ^ Files.readAllBytes(files[0])[bytes.length - 1]);
+    }
+
+    @Test
+    public void testChangedSource() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path source = writeSource(directory, SOURCE);
+        ProgramCache cache = new ProgramCache(null, ProgramCache.DEFAULT_MAX_BYTES);
+        cache.load(source, 2);
+        writeSource(directory, "+++");
+        assertSameProgram(new WutlangParser("+++").getProgram(), cache.load(source, 2));
+        assertSameProgram(new WutlangParser("+++").getProgram(), new ProgramCache(null, 0).load(source, 2));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path first = Files.write(directory.resolve("first.wut"), "+>+".getBytes(StandardCharsets.UTF_8));
+        Path second = Files.write(directory.resolve("second.wut"), "->-".getBytes(StandardCharsets.UTF_8));
+        // Only room for one of the programs.
+        ProgramCache cache = new ProgramCache(directory, 120);
+        Program program = cache.load(first, 0);
+        assertSame(program, cache.load(first, 0));
+        cache.load(second, 0);
+        assertNotSame(program, cache.load(first, 0));
+    }
+}
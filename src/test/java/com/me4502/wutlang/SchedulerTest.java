@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SchedulerTest {
+
+    private static final String HELLO = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.";
+
+    private static Program compile(String source) throws ParsingException {
+        // Level 2, so that the loops run in slices instead of being evaluated while compiling.
+        return Program.compile(Arrays.asList(source), 2);
+    }
+
+    private static ByteArrayInputStream noInput() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Test
+    public void testSharedProgram() throws Exception {
+        Program program = compile(HELLO);
+        try (Scheduler scheduler = new Scheduler(2, 5)) {
+            List<Scheduler.Session> sessions = new ArrayList<>();
+            List<ByteArrayOutputStream> outputs = new ArrayList<>();
+            for (int i = 0; i < 50; i ++) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                outputs.add(output);
+                sessions.add(scheduler.submit(program, Scheduler.Limits.NONE, noInput(), output));
+            }
+            for (int i = 0; i < sessions.size(); i ++) {
+                Scheduler.Session session = sessions.get(i);
+                assertTrue(session.await(10000));
+                assertEquals(Scheduler.State.FINISHED, session.getState());
+                assertEquals("Hello World!\n", new String(outputs.get(i).toByteArray(), StandardCharsets.UTF_8));
+                assertTrue(session.getSlices() > 1);
+            }
+        }
+    }
+
+    @Test
+    public void testInfiniteLoop() throws Exception {
+        try (Scheduler scheduler = new Scheduler(1, 1000)) {
+            Scheduler.Session forever = scheduler.submit(compile("+[]"), Scheduler.Limits.NONE, noInput(), new ByteArrayOutputStream());
+            Scheduler.Session limited = scheduler.submit(compile("+[]"), new Scheduler.Limits(100000, 0, 1 << 20, 16), noInput(), new ByteArrayOutputStream());
+            Scheduler.Session timed = scheduler.submit(compile("+[]"), new Scheduler.Limits(Long.MAX_VALUE, 50, 1 << 20, 16), noInput(), new ByteArrayOutputStream());
+            // Still gets a turn while the other programs loop.
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Scheduler.Session hello = scheduler.submit(compile(HELLO), Scheduler.Limits.NONE, noInput(), output);
+
+            assertTrue(hello.await(10000));
+            assertEquals("Hello World!\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+
+            assertTrue(limited.await(10000));
+            assertEquals(Scheduler.State.FAILED, limited.getState());
+            assertTrue(limited.getFailure().getMessage().startsWith("Iteration limit of 100000 exceeded."));
+            assertEquals(100001, limited.getIterations());
+
+            assertTrue(timed.await(10000));
+            assertEquals(Scheduler.State.FAILED, timed.getState());
+            assertTrue(timed.getFailure().getMessage().startsWith("Time limit of 50ms exceeded."));
+
+            assertTrue(forever.getIterations() > 0);
+            forever.cancel();
+            assertTrue(forever.await(10000));
+            assertEquals(Scheduler.State.CANCELLED, forever.getState());
+        }
+    }
+
+    @Test
+    public void testParkedOnInput() throws Exception {
+        try (Scheduler scheduler = new Scheduler(1, 1000)) {
+            PipedOutputStream pipe = new PipedOutputStream();
+            ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+            // Echoes its input until the end of it.
+            Scheduler.Session echo = scheduler.submit(compile(",[.,]"), Scheduler.Limits.NONE, new PipedInputStream(pipe), echoed);
+            while (echo.getState() != Scheduler.State.PARKED) {
+                Thread.sleep(10);
+            }
+            // The parked program doesn't hold up the only worker.
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Scheduler.Session hello = scheduler.submit(compile(HELLO), Scheduler.Limits.NONE, noInput(), output);
+            assertTrue(hello.await(10000));
+
+            pipe.write("abc".getBytes(StandardCharsets.UTF_8));
+            pipe.close();
+            assertTrue(echo.await(10000));
+            assertEquals(Scheduler.State.FINISHED, echo.getState());
+            assertEquals("abc", new String(echoed.toByteArray(), StandardCharsets.UTF_8));
+            assertTrue(echo.getParks() > 0);
+        }
+    }
+
+    @Test
+    public void testCancelWhileReading() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream input = new InputStream() {
+            @Override
+            public int read() {
+                reading.countDown();
+                // Ignores interrupts, like a console does.
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                return -1;
+            }
+        };
+        try (Scheduler scheduler = new Scheduler(1, 1000)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            // Starts a webserver on any port, then waits for input.
+            Scheduler.Session session = scheduler.submit(compile("++++++++[>++++++<-]>$,"), Scheduler.Limits.NONE, input, output);
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            String address = new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+            int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+
+            session.cancel();
+            assertTrue(session.await(10000));
+            assertEquals(Scheduler.State.CANCELLED, session.getState());
+            // The machine isn't reset while the read is still using it, so the webserver is still up.
+            new Socket("localhost", port).close();
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                try {
+                    new Socket("localhost", port).close();
+                } catch (ConnectException e) {
+                    break;
+                }
+                assertTrue("The webserver wasn't stopped after the read returned.", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testHeapLimit() throws Exception {
+        try (Scheduler scheduler = new Scheduler(1, 1000)) {
+            Scheduler.Session session = scheduler.submit(compile("+[>+]"), new Scheduler.Limits(Long.MAX_VALUE, 0, 1024, 16), noInput(), new ByteArrayOutputStream());
+            assertTrue(session.await(10000));
+            assertEquals(Scheduler.State.FAILED, session.getState());
+            assertTrue(session.getFailure().getMessage().startsWith("Heap limit of 1024 bytes exceeded."));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class SnapshotTest {
+
+    private static final String SOURCE = "+++[>++^<:-]>.";
+
+    private static Program compile(String source) throws ParsingException {
+        return Program.compile(Arrays.asList(source), WutlangOptimizer.DEFAULT_LEVEL);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        Path file = Files.createTempDirectory("wutlang").resolve("test" + Snapshot.EXTENSION);
+        Program program = compile(SOURCE);
+        for (Engine engine : Engine.values()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Machine machine = new Machine();
+            machine.setEngine(engine);
+            machine.setConsole(null, output);
+            machine.setSnapshotFile(file);
+            machine.run(program);
+
+            Snapshot snapshot = Snapshot.read(file);
+            assertTrue(snapshot.matches(program));
+            assertEquals(0, snapshot.getCursor());
+            assertEquals(-1, snapshot.getServerPort());
+
+            // The last snapshot was taken in the last iteration of the loop.
+            ByteArrayOutputStream resumedOutput = new ByteArrayOutputStream();
+            Machine resumed = new Machine();
+            resumed.setConsole(null, resumedOutput);
+            resumed.run(program, snapshot);
+            assertArrayEquals(machine.getHeap(), resumed.getHeap());
+            assertEquals(machine.getStack(), resumed.getStack());
+            assertArrayEquals(output.toByteArray(), resumedOutput.toByteArray());
+        }
+    }
+
+    @Test
+    public void testResumeFile() throws Exception {
+        Path directory = Files.createTempDirectory("wutlang");
+        Path input = directory.resolve("input.txt");
+        Files.write(input, "ab".getBytes(StandardCharsets.UTF_8));
+        Path file = directory.resolve("test" + Snapshot.EXTENSION);
+        Program program = compile("&i,:,c.");
+
+        ArrayHeap heap = new ArrayHeap();
+        String name = input.toString();
+        heap.ensureCapacity(name.length());
+        for (int i = 0; i < name.length(); i ++) {
+            heap.set(i, name.charAt(i));
+        }
+        Machine machine = new Machine();
+        machine.setHeap(heap);
+        machine.setConsole(null, new ByteArrayOutputStream());
+        machine.setSnapshotFile(file);
+        machine.run(program);
+
+        Snapshot snapshot = Snapshot.read(file);
+        assertEquals(name, snapshot.getFileName());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Machine resumed = new Machine();
+        resumed.setConsole(null, output);
+        resumed.run(program, snapshot);
+        assertEquals("b", new String(output.toByteArray(), StandardCharsets.UTF_8));
+        resumed.reset();
+    }
+
+    @Test
+    public void testMismatch() throws Exception {
+        Path file = Files.createTempDirectory("wutlang").resolve("test" + Snapshot.EXTENSION);
+        Machine machine = new Machine();
+        machine.setConsole(null, new ByteArrayOutputStream());
+        machine.setSnapshotFile(file);
+        machine.run(compile(SOURCE));
+        Snapshot snapshot = Snapshot.read(file);
+
+        assertTrue(!snapshot.matches(compile(SOURCE + "+")));
+        try {
+            new Machine().run(compile(SOURCE + "+"), snapshot);
+            fail("Resumed a different program");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().startsWith("Snapshot was taken from a different program"));
+        }
+        Machine paged = new Machine();
+        paged.setHeap(new PagedHeap(8, 1, Long.MAX_VALUE, false));
+        try {
+            paged.run(compile(SOURCE), snapshot);
+            fail("Resumed onto a heap with a different cell width");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().startsWith("Snapshot has 16-bit cells"));
+        }
+
+        Files.write(file, new byte[] {1, 2, 3});
+        try {
+            Snapshot.read(file);
+            fail("Read a damaged snapshot");
+        } catch (IOException e) {
+            assertEquals("Not a snapshot.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDumpRange() throws ParsingException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Machine machine = new Machine();
+        machine.setHeap(new PagedHeap(32, 1, Long.MAX_VALUE, false));
+        machine.setConsole(null, output);
+        machine.setDumpRange(1, 3);
+        machine.run(compile("+>++>+++>++++:"));
+        assertEquals("[2, 3]" + System.lineSeparator(), new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
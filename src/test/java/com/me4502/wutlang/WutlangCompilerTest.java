@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class WutlangCompilerTest {
+
+    private static String randomSource(long seed) {
+        Random random = new Random(seed);
+        String characters = "+-<>.,^V#  ";
+        StringBuilder source = new StringBuilder();
+        for (int line = 0; line < 200; line ++) {
+            int length = random.nextInt(10) == 0 ? 1000 : random.nextInt(40);
+            for (int i = 0; i < length; i ++) {
+                source.append(characters.charAt(random.nextInt(characters.length())));
+            }
+            if (random.nextBoolean()) {
+                source.append("[-]");
+            }
+            source.append('\n');
+        }
+        return source.toString();
+    }
+
+    private static void assertSamePositions(Program expected, Program actual) {
+        assertArrayEquals(expected.getCode(), actual.getCode());
+        assertArrayEquals(expected.getOperands(), actual.getOperands());
+        for (int pc = 0; pc < expected.size(); pc ++) {
+            assertEquals(expected.getLine(pc), actual.getLine(pc));
+            assertEquals(expected.getColumn(pc), actual.getColumn(pc));
+        }
+    }
+
+    @Test
+    public void testReaderMatchesLines() throws IOException, ParsingException {
+        for (long seed = 0; seed < 5; seed ++) {
+            String source = randomSource(seed);
+            for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+                Program expected = Program.compile(Arrays.asList(source.split("\n")), level);
+                assertSamePositions(expected, Program.compile(new StringReader(source), level));
+                assertSamePositions(expected, Program.compile(new StringReader(source.replace("\n", "\r\n")), level));
+                assertSamePositions(expected, Program.compile(Channels.newChannel(
+                        new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))), level));
+            }
+        }
+    }
+
+    @Test
+    public void testPositions() throws IOException, ParsingException {
+        String source = "+\r\n +\r" + String.join("", Collections.nCopies(300, " ")) + "+ # [\n\n  +";
+        Program program = Program.compile(new StringReader(source), 0);
+        assertEquals(4, program.size());
+        assertArrayEquals(new int[] {0, 1, 2, 4}, new int[] {program.getLine(0), program.getLine(1), program.getLine(2), program.getLine(3)});
+        assertArrayEquals(new int[] {0, 1, 300, 2}, new int[] {program.getColumn(0), program.getColumn(1), program.getColumn(2), program.getColumn(3)});
+    }
+
+    @Test
+    public void testUnbalancedLoop() throws IOException {
+        try {
+            Program.compile(new StringReader("+\n  [+\n"), 0);
+            fail("Expected unbalanced loop to be rejected.");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().endsWith("[2:3]"));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016-2021 Me4502 (Maddy Miller)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.me4502.wutlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class WutlangOptimizerTest {
+
+    private static Program compile(String source, int level) throws ParsingException {
+        return WutlangOptimizer.optimize(WutlangCompiler.compile(Arrays.asList(source.split("\n"))), level);
+    }
+
+    @Test
+    public void testRunFolding() throws ParsingException {
+        Program program = compile("+++++ >>>\n--<<", 1);
+        assertArrayEquals(new byte[] {Opcode.ADD, Opcode.MOVE, Opcode.ADD, Opcode.MOVE}, program.getCode());
+        assertArrayEquals(new int[] {5, 3, -2, -2}, program.getOperands());
+    }
+
+    @Test
+    public void testLoopIdioms() throws ParsingException {
+        assertArrayEquals(new byte[] {Opcode.CLEAR}, compile("[-]", 2).getCode());
+        assertArrayEquals(new byte[] {Opcode.CLEAR}, compile("[+]", 2).getCode());
+        assertArrayEquals(new byte[] {Opcode.SCAN}, compile("[>]", 2).getCode());
+        assertArrayEquals(new byte[] {Opcode.LOOP_START, Opcode.MUL, Opcode.CLEAR, Opcode.LOOP_END},
+                compile("[->+<]", 2).getCode());
+    }
+
+    @Test
+    public void testMultiplyLoop() {
+        for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+            WutlangParser parser = new WutlangParser("+++++[->++>+++<<]>>>+++[+<<->>]");
+            parser.setOptimizationLevel(level);
+            try {
+                parser.parseProgram();
+            } catch (ParsingException e) {
+                fail(e.getMessage());
+            }
+            assertArrayEquals(new char[] {0, 13, 15, 0}, parser.getHeap());
+        }
+    }
+
+    @Test
+    public void testUnderflowPositionMatchesUnoptimized() {
+        String[] programs = {"><<", "+>>+[-<<<+>>>]", ">+[<]<", ">+[>+[<<<+>>>-]<-]"};
+        for (String source : programs) {
+            String expected = null;
+            for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+                WutlangParser parser = new WutlangParser(source);
+                parser.setOptimizationLevel(level);
+                try {
+                    parser.parseProgram();
+                    fail("Expected " + source + " to underflow.");
+                } catch (ParsingException e) {
+                    String result = e.getMessage() + Arrays.toString(parser.getHeap());
+                    if (expected == null) {
+                        expected = result;
+                    }
+                    assertEquals(expected, result);
+                }
+                assertTrue(parser.getCursor() == -1);
+            }
+        }
+    }
+
+    @Test
+    public void testGuardedLoop() throws ParsingException {
+        String source = "+++[>++[>+++<-]<-]";
+        byte[] code = compile(source, 2).getCode();
+        assertEquals(Opcode.HEAP_GUARD, code[2]);
+        assertEquals(Opcode.MOVE_UNCHECKED, code[3]);
+        for (Engine engine : Engine.values()) {
+            for (int level = 0; level <= WutlangOptimizer.MAX_LEVEL; level ++) {
+                WutlangParser parser = new WutlangParser(source);
+                parser.setOptimizationLevel(level);
+                parser.setEngine(engine);
+                parser.parseProgram();
+                assertArrayEquals(new char[] {0, 0, 18}, Arrays.copyOf(parser.getHeap(), 3));
+            }
+        }
+    }
+
+    @Test
+    public void testPartialEvaluation() throws ParsingException {
+        // Builds "0" in the second cell, then prints it and echoes a byte of input.
+        Program program = compile("++++++++[>++++++<-]>.,.", 3);
+        assertEquals(Opcode.OUTPUT, program.getCode()[program.getStart()]);
+        assertEquals(1, program.getStartCursor());
+        assertArrayEquals(new int[] {0, 48}, program.getImage());
+        for (Engine engine : Engine.values()) {
+            Machine machine = new Machine();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            machine.setConsole(new ByteArrayInputStream(new byte[] {'x'}), output);
+            machine.setEngine(engine);
+            machine.run(program);
+            assertEquals("0x", new String(output.toByteArray(), StandardCharsets.UTF_8));
+            assertArrayEquals(new char[] {0, 'x'}, machine.getHeap());
+
+            // A heap that isn't empty runs every instruction.
+            machine.reset();
+            machine.setHeap(new ArrayHeap(1, Long.MAX_VALUE));
+            machine.heap().set(0, 1);
+            output.reset();
+            machine.setConsole(new ByteArrayInputStream(new byte[] {'y'}), output);
+            machine.run(program);
+            assertEquals("6y", new String(output.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testPartialEvaluationStops() throws ParsingException {
+        // Cells that leave the range every width agrees on, and loops that never end, are left for the run.
+        assertNull(compile("-", 3).getImage());
+        assertEquals(1, compile("+[]", 3).getStart());
+        assertEquals(2, compile("+>^", 3).getStart());
+        assertNull(compile("<", 3).getImage());
+    }
+}
@@ -22,11 +22,38 @@
 package com.me4502.wutlang;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+
 public class WutlangSpecTest {
 
     @Test
@@ -101,4 +128,358 @@ public class WutlangSpecTest {
         }
         assertArrayEquals(parser.getHeap(), new char[]{0, 0, 0, 0});
     }
+
+    @Test
+    public void testUnbalancedLoopReportedBeforeExecution() {
+        WutlangParser parser = new WutlangParser(">>\n+[[-]");
+        try {
+            parser.parseProgram();
+            fail("Expected unbalanced loop to be rejected.");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage().endsWith("[2:2]"));
+        }
+        assertTrue(parser.getCursor() == 0);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testLoopEndWithoutBeginning() throws ParsingException {
+        WutlangParser parser = new WutlangParser("+]");
+        parser.parseProgram();
+    }
+
+    @Test
+    public void testCommentsIgnored() {
+        WutlangParser parser = new WutlangParser("+ # comment with > and [\n+ + #+\n>");
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        assertArrayEquals(parser.getHeap(), new char[] {3, 0});
+    }
+
+    private static String writeString(String value) {
+        StringBuilder program = new StringBuilder();
+        for (char character : value.toCharArray()) {
+            for (int i = 0; i < character; i ++) {
+                program.append('+');
+            }
+            program.append('>');
+        }
+        for (int i = 0; i < value.length(); i ++) {
+            program.append('<');
+        }
+        return program.toString();
+    }
+
+    @Test
+    public void testFileOutput() throws IOException {
+        File file = File.createTempFile("wutlang", ".txt");
+        file.deleteOnExit();
+        // Writes "a", clears the file, then writes "bb".
+        WutlangParser parser = new WutlangParser(writeString(file.getAbsolutePath()) + "&\n"
+                + "o" + writeString("a") + ".p>" + writeString("b") + "..e");
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).equals("bb"));
+    }
+
+    @Test
+    public void testFileInput() throws IOException {
+        for (boolean mapped : new boolean[] {false, true}) {
+            File file = File.createTempFile("wutlang", ".txt");
+            file.deleteOnExit();
+            Files.write(file.toPath(), "xyz".getBytes(StandardCharsets.UTF_8));
+            String path = file.getAbsolutePath();
+            // Reads "xyz" and the end of the file, then appends "x" and reads it back.
+            WutlangParser parser = new WutlangParser(writeString(path) + "&i,>,>,>+++,>o<<<<.>>>>,e");
+            parser.setMappedFiles(mapped);
+            try {
+                parser.parseProgram();
+            } catch (ParsingException e) {
+                fail(e.getMessage());
+            }
+            char[] heap = parser.getHeap();
+            assertArrayEquals(new char[] {'x', 'y', 'z', 0, 'x'}, Arrays.copyOfRange(heap, path.length() + 1, path.length() + 6));
+            assertEquals("xyzx", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testStack() {
+        WutlangParser parser = new WutlangParser("+++^>+^^>V");
+        try {
+            parser.parseProgram();
+        } catch (ParsingException e) {
+            fail(e.getMessage());
+        }
+        assertArrayEquals(parser.getHeap(), new char[] {3, 1, 1, 0});
+        assertTrue(parser.getStack().size() == 2);
+        assertTrue(parser.getStack().get(0) == 3);
+        assertTrue(parser.getStack().toString().equals("[\u0003, \u0001]"));
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testEmptyStack() throws ParsingException {
+        WutlangParser parser = new WutlangParser("+^VV");
+        parser.parseProgram();
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testStackLimit() throws ParsingException {
+        WutlangParser parser = new WutlangParser("^^^");
+        parser.setStackLimits(1, 2);
+        parser.parseProgram();
+    }
+
+    @Test
+    public void testSmallStackLimits() {
+        for (int limit = 0; limit <= 1; limit ++) {
+            WutlangParser parser = new WutlangParser("+^^");
+            parser.setStackLimits(CharStack.DEFAULT_CAPACITY, limit);
+            try {
+                parser.parseProgram();
+                fail("Expected a stack limit of " + limit + " to be exceeded.");
+            } catch (ParsingException e) {
+                assertTrue(e.getMessage().startsWith("Stack is full"));
+            }
+            assertEquals(limit, parser.getStack().size());
+
+            CharStack stack = new CharStack(0, limit);
+            for (int i = 0; i < limit; i ++) {
+                assertTrue(stack.push((char) i));
+            }
+            assertFalse(stack.push((char) limit));
+            assertFalse(stack.copy().push((char) limit));
+        }
+    }
+
+    @Test
+    public void testConcurrentServer() throws Exception {
+        testConcurrentServer(Engine.INTERPRETER);
+    }
+
+    @Test
+    public void testConcurrentServerJit() throws Exception {
+        testConcurrentServer(Engine.JIT);
+    }
+
+    private void testConcurrentServer(Engine engine) throws Exception {
+        // Port "0" and a response length of 3, then a handler writing "aaa".
+        // Once the server stops, the program skips the handler and prints "A".
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>>>+++<<$!>>++++++++++[<++++++++++>-]<---...%"
+                + "[-]>[-]++++++++[<++++++++>-]<+.");
+        parser.setServerMode(4, 0);
+        parser.setEngine(engine);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        parser.getMachine().setConsole(new ByteArrayInputStream(new byte[0]), output);
+        serve(parser, address -> {
+            ExecutorService requests = Executors.newFixedThreadPool(8);
+            List<Future<String>> responses = new ArrayList<>();
+            URL url = new URL("http://localhost:" + address.getPort() + "/");
+            for (int i = 0; i < 16; i ++) {
+                responses.add(requests.submit(() -> {
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    try (InputStream body = connection.getInputStream()) {
+                        return new String(readFully(body), StandardCharsets.UTF_8);
+                    }
+                }));
+            }
+            for (Future<String> response : responses) {
+                assertEquals("aaa", response.get(10, TimeUnit.SECONDS));
+            }
+            requests.shutdown();
+        });
+        assertTrue(output.toString("UTF-8").endsWith("A"));
+    }
+
+    @Test
+    public void testConcurrentServerReadsFile() throws Exception {
+        File file = File.createTempFile("wutlang", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        // Reads "a", then every request reads the next character, answers
+        // with it, and tries to write it back to the file.
+        WutlangParser parser = new WutlangParser(writeString(file.getAbsolutePath()) + "&i,>"
+                + "++++++++[>++++++<-]>>>+<<$i>,!.o.%e");
+        parser.setServerMode(2, 0);
+        serve(parser, address -> {
+            URL url = new URL("http://localhost:" + address.getPort() + "/");
+            for (int i = 0; i < 3; i ++) {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try (InputStream body = connection.getInputStream()) {
+                    assertEquals("b", new String(readFully(body), StandardCharsets.UTF_8));
+                }
+            }
+        });
+        assertEquals("abc", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRequestTimeoutWhileReading() throws Exception {
+        // Reads far enough into the request to wait for its body.
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>>>+<<$@,,,,,,,,,,,,,,,,,,,,,,,,,%");
+        parser.setServerMode(2, 200);
+        serve(parser, address -> {
+            try (Socket socket = new Socket("localhost", address.getPort())) {
+                socket.setSoTimeout(10000);
+                OutputStream request = socket.getOutputStream();
+                request.write("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                request.flush();
+                InputStream response = socket.getInputStream();
+                assertTrue(readUntil(response, "\r\n\r\n").startsWith("HTTP/1.1 200"));
+                // The body never arrives, so the request times out and its connection is closed.
+                try {
+                    assertEquals(-1, response.read());
+                } catch (SocketException ignored) {
+                    // Closed before the response was read.
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testServerWaitsForRequests() throws Exception {
+        // Answers "aaa" to every request until the server is stopped.
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>>>+++<<$[!>>++++++++++[<++++++++++>-]<---...[-]<%]");
+        serve(parser, address -> {
+            URL url = new URL("http://localhost:" + address.getPort() + "/");
+            for (int i = 0; i < 3; i ++) {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try (InputStream body = connection.getInputStream()) {
+                    assertEquals("aaa", new String(readFully(body), StandardCharsets.UTF_8));
+                }
+            }
+        });
+    }
+
+    private interface Client {
+
+        void run(InetSocketAddress address) throws Exception;
+    }
+
+    /**
+     * Runs a program that starts a webserver on another thread, and runs
+     * the client against it once it is up. The server is stopped
+     * afterwards, and anything the program threw is thrown here.
+     */
+    private static void serve(WutlangParser parser, Client client) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                parser.parseProgram();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        thread.start();
+        boolean started = false;
+        try {
+            InetSocketAddress address;
+            while ((address = parser.getServerAddress()) == null && thread.isAlive()) {
+                Thread.sleep(10);
+            }
+            if (address != null) {
+                started = true;
+                client.run(address);
+            }
+        } finally {
+            parser.stopServer();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+        Throwable thrown = failure.get();
+        if (thrown instanceof Exception) {
+            throw (Exception) thrown;
+        } else if (thrown != null) {
+            throw (Error) thrown;
+        }
+        assertTrue("The program ended without starting a webserver.", started);
+    }
+
+    @Test
+    public void testChunkedKeepAlive() throws Exception {
+        // Answers "aaa" to every request, in chunks rather than with the length of 3.
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>>>+++<<$[!>>++++++++++[<++++++++++>-]<---...[-]<%]");
+        parser.setChunkedResponses(true);
+        serve(parser, address -> {
+            try (Socket socket = new Socket("localhost", address.getPort())) {
+                socket.setSoTimeout(10000);
+                OutputStream request = socket.getOutputStream();
+                InputStream response = socket.getInputStream();
+                // Both requests go over the same connection.
+                for (int i = 0; i < 2; i ++) {
+                    request.write("GET /path HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    request.flush();
+                    String headers = readUntil(response, "\r\n\r\n").toLowerCase(Locale.ROOT);
+                    assertTrue(headers.startsWith("http/1.1 200"));
+                    assertTrue(headers.contains("transfer-encoding: chunked"));
+                    assertEquals("3\r\naaa\r\n0\r\n\r\n", readUntil(response, "0\r\n\r\n"));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testServerMetrics() throws Exception {
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>>>+++<<$[!>>++++++++++[<++++++++++>-]<---...[-]<%]");
+        parser.setChunkedResponses(true);
+        parser.setMetricsEndpoint(true);
+        serve(parser, address -> {
+            for (int i = 0; i < 3; i ++) {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + address.getPort() + "/").openConnection();
+                assertEquals("aaa", new String(readFully(connection.getInputStream()), StandardCharsets.UTF_8));
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + address.getPort()
+                    + ServerMetrics.PATH).openConnection();
+            String metrics = new String(readFully(connection.getInputStream()), StandardCharsets.UTF_8);
+            assertTrue(metrics.contains("\nwutlang_requests_completed_total 3\n"));
+            assertTrue(metrics.contains("\nwutlang_request_latency_seconds_count 3\n"));
+            assertTrue(metrics.contains("\nwutlang_open_streams 0\n"));
+
+            ObjectName name = new ObjectName("com.me4502.wutlang:type=Server,port=" + address.getPort());
+            assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RequestCount"));
+        });
+        ServerMetrics metrics = parser.getServerMetrics();
+        assertEquals(3, metrics.getCompletedCount());
+        assertEquals(0, metrics.getErrorCount());
+        assertTrue(metrics.getLatencyPercentile(0.5) > 0);
+    }
+
+    private static String readUntil(InputStream input, String end) throws IOException {
+        StringBuilder read = new StringBuilder();
+        while (read.length() < end.length() || !read.substring(read.length() - end.length()).equals(end)) {
+            int value = input.read();
+            if (value == -1) {
+                throw new IOException("Connection closed after " + read);
+            }
+            read.append((char) value);
+        }
+        return read.toString();
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testConnectionTimeout() throws ParsingException {
+        WutlangParser parser = new WutlangParser("++++++++[>++++++<-]>$!");
+        parser.setConnectionTimeout(50);
+        try {
+            parser.parseProgram();
+        } finally {
+            parser.stopServer();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
 }